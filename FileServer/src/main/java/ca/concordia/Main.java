@@ -1,13 +1,106 @@
 package ca.concordia;
 
+import ca.concordia.filesystem.FileSystem;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.ShardedFileSystem;
+import ca.concordia.filesystem.TieredFileSystem;
+import ca.concordia.filesystem.WriteBackFileSystem;
+import ca.concordia.server.AdmissionControl;
 import ca.concordia.server.FileServer;
+import ca.concordia.server.Tls;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import javax.net.SocketFactory;
 
 public class Main {
     public static void main(String[] args) {
         System.out.println("Hello and welcome!");
 
-        FileServer server = new FileServer(12345, "filesystem.dat", 10 * 128);
+        int port = Integer.getInteger("fs.port", 12345);
+        String image = System.getProperty("fs.image", "filesystem.dat");
+
+        // one image keeps the original layout; more shards get one image each
+        int shards = Integer.getInteger("fs.shards", 1);
+        FileSystem storage = shards > 1
+                ? new ShardedFileSystem(image, 10 * 128, shards)
+                : new FileSystemManager(image, 10 * 128);
+        storage.setDeduplication(Boolean.getBoolean("fs.dedup"));
+        storage.setCompression(Boolean.getBoolean("fs.compress"));
+        storage.setDefragmentation(Long.getLong("fs.defragMs", 0));
+
+        // -Dfs.hotTierBytes > 0 serves frequently read small files from memory
+        long hotTierBytes = Long.getLong("fs.hotTierBytes", 0);
+        FileSystem tiered = hotTierBytes > 0
+                ? new TieredFileSystem(storage, hotTierBytes, Integer.getInteger("fs.hotFileBytes", 4096))
+                : storage;
+
+        // -Dfs.writeBackMs > 0 buffers WRITEs and coalesces rewrites of the same file
+        long writeBackMs = Long.getLong("fs.writeBackMs", 0);
+        FileSystem fs = writeBackMs > 0
+                ? new WriteBackFileSystem(tiered, writeBackMs, Long.getLong("fs.writeBackBytes", 64 * 1024))
+                : tiered;
+
+        FileServer server = new FileServer(port, fs);
+
+        // -Dfs.clientRate / -Dfs.writeRate in requests per second, 0 for no limit
+        AdmissionControl admission = new AdmissionControl(Integer.getInteger("fs.maxConcurrent", 64));
+        admission.limitConnections(Integer.getInteger("fs.maxConnections", 1024));
+        admission.limitStreams(Integer.getInteger("fs.maxStreams", 4));
+        double clientRate = Double.parseDouble(System.getProperty("fs.clientRate", "0"));
+        if (clientRate > 0) admission.limitClients(clientRate, Integer.getInteger("fs.clientBurst", 20));
+        double writeRate = Double.parseDouble(System.getProperty("fs.writeRate", "0"));
+        if (writeRate > 0) {
+            for (String command : new String[]{"CREATE", "MKDIR", "WRITE", "DELETE"}) {
+                admission.limitCommand(command, writeRate, Integer.getInteger("fs.writeBurst", 10));
+            }
+        }
+        server.setAdmissionControl(admission);
+
+        // -Dfs.tls.keystore=server.p12 serves TLS; -Dfs.tokens=a,b requires AUTH <token>
+        String keystore = System.getProperty("fs.tls.keystore");
+        char[] password = System.getProperty("fs.tls.password", "").toCharArray();
+        String tokens = System.getProperty("fs.tokens");
+        if (tokens != null) server.requireAuth(Arrays.asList(tokens.split(",")));
+
+        // -Dfs.replication=primary, or -Dfs.replicaOf=host:port on a replica
+        if ("primary".equals(System.getProperty("fs.replication"))) {
+            server.enablePrimary();
+        }
+        String replicaOf = System.getProperty("fs.replicaOf");
+        try {
+            if (keystore != null) server.enableTls(Tls.serverContext(Path.of(keystore), password));
+            if (replicaOf != null) {
+                // -Dfs.replicaTls=truststore.p12 (-Dfs.replicaTlsPassword) when the primary serves TLS
+                String truststore = System.getProperty("fs.replicaTls");
+                char[] trustPassword = System.getProperty("fs.replicaTlsPassword", "").toCharArray();
+                SocketFactory transport = truststore != null
+                        ? Tls.clientContext(Path.of(truststore), trustPassword).getSocketFactory()
+                        : SocketFactory.getDefault();
+                String[] hostPort = replicaOf.split(":");
+                server.enableReplica(hostPort[0], Integer.parseInt(hostPort[1]), Path.of(image + ".replica"),
+                        transport, System.getProperty("fs.replicaToken"));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
         // Start the file server
-        server.start();
+        try {
+            server.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        // SIGTERM drains in-flight requests and closes the image cleanly, so the
+        // next start finds a clean checkpoint
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(5, TimeUnit.SECONDS)));
+        try {
+            server.awaitTermination();
+        } catch (InterruptedException ignore) {
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,337 @@
+package ca.concordia.filesystem;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Immutable name -> FEntry slot index for every directory, root included.
+ *
+ * A directory is a sorted run of leaves, each holding up to RECORDS_PER_LEAF
+ * children and stored in exactly one block of the directory's chain, in the
+ * same order. Lookups binary-search the leaves' first names and then the leaf.
+ * An update copies one leaf (splitting it when full, dropping it when empty)
+ * plus the array of leaf references, so only that leaf's block has to be
+ * rewritten. The leaf array is the whole inner level: a directory's 14-bit
+ * size field caps it at 127 blocks, so a deeper tree would buy nothing.
+ *
+ * Root has no records on disk; it is whatever no directory lists.
+ */
+final class DirectoryIndex {
+
+    static final int ROOT = -2; // not a real FEntry slot; -1 means "not found"
+    static final String SEPARATOR = "/";
+
+    static final int NAME_BYTES   = 11;
+    static final int RECORD_BYTES = NAME_BYTES + 2; // name + FEntry slot
+    static final int RECORDS_PER_LEAF = FileSystemManager.BLOCK_SIZE / RECORD_BYTES;
+
+    private static final Leaf[] NO_LEAVES = new Leaf[0];
+
+    /** Sorted records of one block. node is the FNode holding it, -1 if not on disk (yet). */
+    static final class Leaf {
+        final String[] names;
+        final int[] slots;
+        final int node;
+
+        Leaf(String[] names, int[] slots, int node) {
+            this.names = names;
+            this.slots = slots;
+            this.node = node;
+        }
+
+        int size() {
+            return names.length;
+        }
+
+        String first() {
+            return names[0];
+        }
+
+        Leaf withNode(int node) {
+            return new Leaf(names, slots, node);
+        }
+
+        private Leaf with(String name, int slot) {
+            int i = Arrays.binarySearch(names, name);
+            if (i >= 0) {
+                int[] s = slots.clone();
+                s[i] = slot;
+                return new Leaf(names, s, node);
+            }
+            int at = -i - 1;
+            String[] n = new String[names.length + 1];
+            int[] s = new int[slots.length + 1];
+            System.arraycopy(names, 0, n, 0, at);
+            System.arraycopy(slots, 0, s, 0, at);
+            n[at] = name;
+            s[at] = slot;
+            System.arraycopy(names, at, n, at + 1, names.length - at);
+            System.arraycopy(slots, at, s, at + 1, slots.length - at);
+            return new Leaf(n, s, node);
+        }
+
+        // null if name is not in this leaf
+        private Leaf without(String name) {
+            int at = Arrays.binarySearch(names, name);
+            if (at < 0) return null;
+            String[] n = new String[names.length - 1];
+            int[] s = new int[slots.length - 1];
+            System.arraycopy(names, 0, n, 0, at);
+            System.arraycopy(slots, 0, s, 0, at);
+            System.arraycopy(names, at + 1, n, at, names.length - at - 1);
+            System.arraycopy(slots, at + 1, s, at, slots.length - at - 1);
+            return new Leaf(n, s, node);
+        }
+
+        // The left half keeps the block; the right half still needs one.
+        private Leaf[] split() {
+            int half = names.length / 2;
+            return new Leaf[]{
+                    new Leaf(Arrays.copyOfRange(names, 0, half), Arrays.copyOfRange(slots, 0, half), node),
+                    new Leaf(Arrays.copyOfRange(names, half, names.length), Arrays.copyOfRange(slots, half, slots.length), -1)
+            };
+        }
+
+        /** One zero-padded block of sorted records. */
+        byte[] encode() {
+            byte[] out = new byte[FileSystemManager.BLOCK_SIZE];
+            for (int i = 0; i < names.length; i++) {
+                int off = i * RECORD_BYTES;
+                byte[] name = names[i].getBytes();
+                System.arraycopy(name, 0, out, off, Math.min(name.length, NAME_BYTES));
+                out[off + NAME_BYTES]     = (byte) (slots[i] >> 8);
+                out[off + NAME_BYTES + 1] = (byte) slots[i];
+            }
+            return out;
+        }
+
+        /** The records of one block, which end at the first empty name. */
+        static Leaf decode(byte[] raw, int node) {
+            NavigableMap<String, Integer> records = decodeRecords(raw, RECORDS_PER_LEAF * RECORD_BYTES);
+            return new Leaf(records.keySet().toArray(new String[0]),
+                    records.values().stream().mapToInt(Integer::intValue).toArray(), node);
+        }
+    }
+
+    /** Records packed back to back across a whole chain, as written before the block layout. */
+    static NavigableMap<String, Integer> decodePacked(byte[] raw) {
+        return decodeRecords(raw, raw.length);
+    }
+
+    private static NavigableMap<String, Integer> decodeRecords(byte[] raw, int limit) {
+        NavigableMap<String, Integer> records = new TreeMap<>();
+        for (int off = 0; off + RECORD_BYTES <= Math.min(limit, raw.length) && raw[off] != 0; off += RECORD_BYTES) {
+            int end = off;
+            while (end < off + NAME_BYTES && raw[end] != 0) end++;
+            String name = new String(raw, off, end - off);
+            records.put(name, ((raw[off + NAME_BYTES] & 0xFF) << 8) | (raw[off + NAME_BYTES + 1] & 0xFF));
+        }
+        return records;
+    }
+
+    private final Map<Integer, Leaf[]> dirs;
+
+    private DirectoryIndex(Map<Integer, Leaf[]> dirs) {
+        this.dirs = dirs;
+    }
+
+    static DirectoryIndex empty() {
+        Map<Integer, Leaf[]> dirs = new HashMap<>();
+        dirs.put(ROOT, NO_LEAVES);
+        return new DirectoryIndex(dirs);
+    }
+
+    /** Packs sorted children into full leaves that are not on disk yet. */
+    static Leaf[] pack(NavigableMap<String, Integer> children) {
+        Leaf[] leaves = new Leaf[(children.size() + RECORDS_PER_LEAF - 1) / RECORDS_PER_LEAF];
+        Iterator<Map.Entry<String, Integer>> it = children.entrySet().iterator();
+        for (int i = 0; i < leaves.length; i++) {
+            int n = Math.min(RECORDS_PER_LEAF, children.size() - i * RECORDS_PER_LEAF);
+            String[] names = new String[n];
+            int[] slots = new int[n];
+            for (int j = 0; j < n; j++) {
+                Map.Entry<String, Integer> child = it.next();
+                names[j] = child.getKey();
+                slots[j] = child.getValue();
+            }
+            leaves[i] = new Leaf(names, slots, -1);
+        }
+        return leaves;
+    }
+
+    // ============================= LOOKUP ============================= //
+
+    boolean isDirectory(int slot) {
+        return dirs.containsKey(slot);
+    }
+
+    /** The directory's leaves in name order; callers must not modify the array. */
+    Leaf[] leaves(int dir) {
+        Leaf[] leaves = dirs.get(dir);
+        return leaves == null ? NO_LEAVES : leaves;
+    }
+
+    boolean isEmpty(int dir) {
+        return leaves(dir).length == 0;
+    }
+
+    int lookup(int dir, String name) {
+        Leaf[] leaves = leaves(dir);
+        if (leaves.length == 0) return -1;
+        Leaf leaf = leaves[leafFor(leaves, name)];
+        int i = Arrays.binarySearch(leaf.names, name);
+        return i < 0 ? -1 : leaf.slots[i];
+    }
+
+    /**
+     * Children in name order, starting at from (inclusive or not); null starts
+     * at the first child. Costs a binary search plus the entries visited.
+     */
+    Iterator<Map.Entry<String, Integer>> children(int dir, String from, boolean inclusive) {
+        Leaf[] leaves = leaves(dir);
+        int leaf = 0, pos = 0;
+        if (from != null && leaves.length > 0) {
+            leaf = leafFor(leaves, from);
+            int i = Arrays.binarySearch(leaves[leaf].names, from);
+            pos = i >= 0 ? (inclusive ? i : i + 1) : -i - 1;
+        }
+        int startLeaf = leaf, startPos = pos;
+        return new Iterator<>() {
+            int l = startLeaf, p = startPos;
+
+            @Override
+            public boolean hasNext() {
+                while (l < leaves.length && p >= leaves[l].size()) {
+                    l++;
+                    p = 0;
+                }
+                return l < leaves.length;
+            }
+
+            @Override
+            public Map.Entry<String, Integer> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Leaf current = leaves[l];
+                Map.Entry<String, Integer> e = Map.entry(current.names[p], current.slots[p]);
+                p++;
+                return e;
+            }
+        };
+    }
+
+    /** @return the FEntry slot for path, ROOT for "" or "/", or -1 if missing */
+    int resolve(String path) {
+        int current = ROOT;
+        for (String part : split(path)) {
+            if (!isDirectory(current)) return -1;
+            current = lookup(current, part);
+            if (current == -1) return -1;
+        }
+        return current;
+    }
+
+    /** @return the directory slot that would hold path's last component */
+    int resolveParent(String path) throws Exception {
+        String[] parts = split(path);
+        int current = ROOT;
+        for (int i = 0; i < parts.length - 1; i++) {
+            current = lookup(current, parts[i]);
+            if (current == -1 || !isDirectory(current)) {
+                throw new Exception("ERROR: directory " + String.join(SEPARATOR, Arrays.copyOf(parts, i + 1)) + " does not exist");
+            }
+        }
+        return current;
+    }
+
+    static String leafName(String path) {
+        String[] parts = split(path);
+        return parts.length == 0 ? "" : parts[parts.length - 1];
+    }
+
+    /** One spelling per path, so "a", "/a" and "a/" key caches the same way. */
+    static String normalize(String path) {
+        return path == null ? "" : String.join(SEPARATOR, split(path));
+    }
+
+    static String[] split(String path) {
+        return Arrays.stream(path.split(SEPARATOR))
+                .filter(p -> !p.isEmpty())
+                .toArray(String[]::new);
+    }
+
+    // Last leaf whose first name is <= name, or 0 when name sorts before all of them.
+    private static int leafFor(Leaf[] leaves, String name) {
+        int lo = 0, hi = leaves.length - 1, found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (leaves[mid].first().compareTo(name) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // ============================= UPDATES ============================= //
+
+    DirectoryIndex withChild(int dir, String name, int slot) {
+        Leaf[] leaves = leaves(dir);
+        if (leaves.length == 0) {
+            return replace(dir, new Leaf[]{new Leaf(new String[]{name}, new int[]{slot}, -1)});
+        }
+        int at = leafFor(leaves, name);
+        Leaf grown = leaves[at].with(name, slot);
+        if (grown.size() <= RECORDS_PER_LEAF) {
+            Leaf[] copy = leaves.clone();
+            copy[at] = grown;
+            return replace(dir, copy);
+        }
+        Leaf[] halves = grown.split();
+        Leaf[] copy = new Leaf[leaves.length + 1];
+        System.arraycopy(leaves, 0, copy, 0, at);
+        copy[at] = halves[0];
+        copy[at + 1] = halves[1];
+        System.arraycopy(leaves, at + 1, copy, at + 2, leaves.length - at - 1);
+        return replace(dir, copy);
+    }
+
+    DirectoryIndex withoutChild(int dir, String name) {
+        Leaf[] leaves = leaves(dir);
+        if (leaves.length == 0) return this;
+        int at = leafFor(leaves, name);
+        Leaf shrunk = leaves[at].without(name);
+        if (shrunk == null) return this;
+        if (shrunk.size() > 0) {
+            Leaf[] copy = leaves.clone();
+            copy[at] = shrunk;
+            return replace(dir, copy);
+        }
+        Leaf[] copy = new Leaf[leaves.length - 1];
+        System.arraycopy(leaves, 0, copy, 0, at);
+        System.arraycopy(leaves, at + 1, copy, at, leaves.length - at - 1);
+        return replace(dir, copy);
+    }
+
+    DirectoryIndex withDirectory(int slot, Leaf[] leaves) {
+        return replace(slot, leaves);
+    }
+
+    DirectoryIndex withoutDirectory(int slot) {
+        Map<Integer, Leaf[]> copy = new HashMap<>(dirs);
+        copy.remove(slot);
+        return new DirectoryIndex(copy);
+    }
+
+    private DirectoryIndex replace(int dir, Leaf[] leaves) {
+        Map<Integer, Leaf[]> copy = new HashMap<>(dirs);
+        copy.put(dir, leaves);
+        return new DirectoryIndex(copy);
+    }
+}
@@ -0,0 +1,7 @@
+package ca.concordia.filesystem;
+
+/**
+ * Metadata-only view of a file. The etag changes whenever the file's
+ * contents change, and differs between a deleted file and its replacement.
+ */
+public record FileStat(String name, int size, boolean directory, String etag) {}
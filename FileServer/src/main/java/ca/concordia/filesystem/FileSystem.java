@@ -0,0 +1,65 @@
+package ca.concordia.filesystem;
+
+import java.util.Map;
+
+/**
+ * Operations the server needs from a storage backend, so a single disk image
+ * and a set of sharded images can be used interchangeably. File names are
+ * "/"-separated paths; each component is at most 11 characters.
+ */
+public interface FileSystem {
+
+    void createFile(String fileName) throws Exception;
+
+    void createDirectory(String path) throws Exception;
+
+    void writeFile(String fileName, byte[] contents) throws Exception;
+
+    byte[] readFile(String fileName) throws Exception;
+
+    void deleteFile(String fileName) throws Exception;
+
+    /** Size, type and etag, without touching the file's blocks. */
+    FileStat stat(String path) throws Exception;
+
+    /** @return null if the file's etag still equals etag, else its contents and current etag */
+    VersionedContents readFileIfChanged(String fileName, String etag) throws Exception;
+
+    /**
+     * Writes only if the file's etag still equals etag (compare-and-swap).
+     * @return the etag of the new contents
+     * @throws PreconditionFailedException if the etag has moved on
+     */
+    String writeFileIf(String fileName, String etag, byte[] contents) throws Exception;
+
+    boolean exists(String path);
+
+    /** Root directory listing. */
+    String[] listFiles();
+
+    String[] listFiles(String directory);
+
+    /**
+     * Up to limit names after cursor (exclusive, may be null) whose path starts
+     * with prefix. The part of prefix up to its last "/" selects the directory,
+     * the rest filters names in it, e.g. "docs/re" or "docs/" for all of docs.
+     */
+    ListPage listPage(String prefix, int limit, String cursor);
+
+    Map<String, Number> getStats();
+
+    void setDeduplication(boolean enabled);
+
+    void setCompression(boolean enabled);
+
+    void setListener(FileSystemListener listener);
+
+    /** Online consistency check; traffic keeps flowing while it runs. */
+    FsckReport check();
+
+    /** Background defragmentation every intervalMs; 0 disables it. */
+    void setDefragmentation(long intervalMs);
+
+    /** Flushes state needed for a fast restart and releases the image(s). */
+    void close() throws java.io.IOException;
+}
@@ -0,0 +1,17 @@
+package ca.concordia.filesystem;
+
+/**
+ * Notified of every successful mutation while the owning image still holds its
+ * write lock, so callbacks for the same file arrive in the order they were applied.
+ * Implementations must be quick and must not call back into the file system.
+ */
+public interface FileSystemListener {
+
+    void fileCreated(String fileName);
+
+    void directoryCreated(String path);
+
+    void fileWritten(String fileName, byte[] contents);
+
+    void fileDeleted(String fileName);
+}
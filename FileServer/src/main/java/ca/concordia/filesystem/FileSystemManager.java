@@ -3,13 +3,30 @@ package ca.concordia.filesystem;
 import ca.concordia.filesystem.datastructures.FEntry;
 import ca.concordia.filesystem.datastructures.FNode;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.Arrays;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
 
-public class FileSystemManager {
+public class FileSystemManager implements FileSystem {
 
     // ============================= PRIVATE VARIABLES ============================= //
 
@@ -21,18 +38,64 @@ public class FileSystemManager {
     private final int MAXBLOCKS = 10;
 
     private RandomAccessFile disk;
+    private FileChannel channel; // positional reads, safe without the lock
     private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
-    private final Lock readLock  = rwLock.readLock();
     private final Lock writeLock = rwLock.writeLock();
 
-    private static final int BLOCK_SIZE = 128;  // size of each block
+    // readers pin the current snapshot instead of locking; writers publish a new one
+    private final AtomicReference<MetadataSnapshot> current = new AtomicReference<>();
+    private final ArrayDeque<MetadataSnapshot> retired = new ArrayDeque<>(); // guarded by writeLock
+    private java.util.List<Integer> unlinked = new java.util.ArrayList<>();  // guarded by writeLock
+    private long[] blockEpoch; // first snapshot epoch that links each block, guarded by writeLock
+    private DirectoryIndex dirIndex = DirectoryIndex.empty(); // immutable, replaced under writeLock
+
+    // content-addressed dedup: identical blocks are shared between chains
+    private boolean deduplication = false;
+    private int[] blockRefs;                      // FNodes linking each block, guarded by writeLock
+    private long[] slotVersion;                   // outlives deletes so a recreated file gets a new etag
+    private int[] slotParent;                     // directory slot, ROOT or PARENT_UNKNOWN, per FEntry slot
+    private int[] blockCrc;                       // stable while any snapshot can see the block
+    private String[] blockDigest;                 // digest of each indexed block
+    private Map<String, Integer> blockByDigest;   // built lazily on the first dedup write
+
+    private boolean compression = false; // applies to files written while enabled
+
+    private final FileSystemMetrics metrics = new FileSystemMetrics();
+    private volatile FileSystemListener listener; // e.g. replication, called under writeLock
+    private volatile Thread defragmenter;
+
+    static final int BLOCK_SIZE = 128;          // size of each block
     private static final int FENTRY_BYTES = 15; // bytes per FEntry
     private static final int FNODE_BYTES = 4;   // bytes per FNode
 
+    // high bits of the on-disk size field; a compressed chain holds [2-byte length][LZ payload]
+    private static final int COMPRESSED_FLAG = 0x8000;
+    private static final int DIRECTORY_FLAG  = 0x4000;
+    static final int MAX_FILE_SIZE           = 0x3FFF;
+    private static final int COMPRESSED_HEADER_BYTES = 2;
+    private static final int CHECKSUM_BYTES = 4; // CRC32C per block, 0 = not recorded
+    private static final int VERSION_BYTES = 8;  // per slot, never wraps in practice
+    private static final int PARENT_BYTES = 1;   // per slot: 0 unknown (older images), 0xFF root, else slot + 1
+    private static final int PARENT_UNKNOWN = -1;
+
+    // Runs of a file this large are read/written concurrently. I/O blocks, so it
+    // gets its own pool rather than the common one.
+    private static final int PARALLEL_MIN_BLOCKS = 4;
+    private static final ForkJoinPool IO_POOL = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
     private int fentryRegionBytes;   // total bytes for fentry array
     private int fnodeRegionBytes;    // total bytes for fnode array
     private int metadataBytes;       // total metadata bytes (fentry + fnode)
+    private int checkpointBytes;     // shutdown state byte + free-block bitmap
+    private int versionBytes;        // low 16 bits of each slot's version, kept for older images
     private int firstDataBlockIndex; // index of first data block
+    private long checksumOffset;     // checksum region, after the last data block
+    private long versionOffset;      // full slot versions, after the checksums
+    private long parentOffset;       // each slot's parent directory, after the versions
+
+    // checkpoint state byte; anything else (e.g. 0 in older images) forces a rebuild
+    private static final byte STATE_CLEAN = (byte) 0xC1;
+    private static final byte STATE_DIRTY = (byte) 0xD1;
 
 
     // ============================= PRIVATE HELPERS ============================= //
@@ -41,17 +104,18 @@ public class FileSystemManager {
         fentryRegionBytes = MAXFILES * FENTRY_BYTES;
         fnodeRegionBytes  = MAXBLOCKS * FNODE_BYTES;
         metadataBytes     = fentryRegionBytes + fnodeRegionBytes;
+        checkpointBytes   = 1 + (MAXBLOCKS + 7) / 8;
+        versionBytes      = MAXFILES * 2;
         // which block index does data start at?
-        firstDataBlockIndex = (metadataBytes + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        firstDataBlockIndex = (metadataBytes + checkpointBytes + versionBytes + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        checksumOffset      = (long) MAXBLOCKS * BLOCK_SIZE;
+        versionOffset       = checksumOffset + (long) MAXBLOCKS * CHECKSUM_BYTES;
+        parentOffset        = versionOffset + (long) MAXFILES * VERSION_BYTES;
     }
 
-    private int findFile(String name) {
-        for (int i = 0; i < MAXFILES; i++) {
-            if (fentryTable[i] != null && fentryTable[i].getFilename().equals(name)) {
-                return i;
-            }
-        }
-        return -1;
+    private int findFile(String path) {
+        int slot = dirIndex.resolve(path);
+        return slot < 0 ? -1 : slot;
     }
 
     private int findFreeSlot() {
@@ -111,13 +175,287 @@ public class FileSystemManager {
         }
     }
 
-    private void loadMetaData() throws IOException {
-        // ---------- Load FEntries ----------
+    // In-memory only; needed by dedup and stats regardless of how the image was closed.
+    private void countBlockRefs() {
+        Arrays.fill(blockRefs, 0);
+        for (FNode fn : fnodesTable) {
+            if (fn != null) blockRefs[fn.getBlockIndex()]++;
+        }
+    }
+
+    private String digestOf(byte[] block) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(block));
+    }
+
+    // Hashes every live block once so earlier content can be shared too.
+    private void buildDigestIndex() throws Exception {
+        blockByDigest = new java.util.HashMap<>();
+        blockDigest   = new String[MAXBLOCKS];
+        byte[] raw = new byte[BLOCK_SIZE];
+        for (int block = firstDataBlockIndex; block < MAXBLOCKS; block++) {
+            if (blockRefs[block] == 0) continue;
+            readFullyAt(raw, 0, BLOCK_SIZE, offsetOfBlock(block));
+            String digest = digestOf(raw);
+            blockDigest[block] = digest;
+            blockByDigest.putIfAbsent(digest, block);
+        }
+    }
+
+    private void forgetDigest(int block) {
+        if (blockDigest == null || blockDigest[block] == null) return;
+        blockByDigest.remove(blockDigest[block], block);
+        blockDigest[block] = null;
+    }
+
+    // Detaches a chain from the working tables. Its blocks stay allocated until
+    // every snapshot that could still reference them has been released.
+    private void unlinkChain(short nodeIndex) {
+        while (nodeIndex != -1) {
+            FNode node = fnodesTable[nodeIndex];
+            if (node == null) break;
+
+            int block = node.getBlockIndex();
+            if (block >= 0 && block < freeBlockList.length && --blockRefs[block] == 0) {
+                forgetDigest(block);
+                unlinked.add(block);
+            }
+            int next = node.getNext();
+            fnodesTable[nodeIndex] = null;
+            nodeIndex = (short) next;
+        }
+    }
+
+    private void freeBlock(int block) throws IOException {
+        writeFullyAt(new byte[BLOCK_SIZE], 0, BLOCK_SIZE, offsetOfBlock(block)); // zero out
+        blockCrc[block] = 0;
+        freeBlockList[block] = true;
+    }
+
+    // Writes blocks that nothing links yet, coalescing physically adjacent ones
+    // into single writes. Checksums reach the disk with the next saveMetaData().
+    private void writeBlocks(java.util.SortedMap<Integer, byte[]> blocks) throws IOException {
+        java.util.List<Callable<Void>> runs = new java.util.ArrayList<>();
+        var it = blocks.entrySet().iterator();
+        Map.Entry<Integer, byte[]> next = it.hasNext() ? it.next() : null;
+        while (next != null) {
+            int start = next.getKey();
+            java.util.List<byte[]> run = new java.util.ArrayList<>();
+            do {
+                run.add(next.getValue());
+                next = it.hasNext() ? it.next() : null;
+            } while (next != null && next.getKey() == start + run.size());
+
+            runs.add(() -> {
+                byte[] buf = new byte[run.size() * BLOCK_SIZE];
+                for (int i = 0; i < run.size(); i++) {
+                    System.arraycopy(run.get(i), 0, buf, i * BLOCK_SIZE, BLOCK_SIZE);
+                    blockCrc[start + i] = crcOf(buf, i * BLOCK_SIZE);
+                }
+                writeFullyAt(buf, 0, buf.length, offsetOfBlock(start));
+                return null;
+            });
+        }
+        runAll(runs, blocks.size(), "io.parallelWrites");
+    }
+
+    // Checksums, full slot versions and parents are adjacent and written together,
+    // always before the metadata: a crash in between can only leave a version
+    // ahead, or a parent recorded for a slot whose FEntry is not on disk yet.
+    private void saveTrailer() throws IOException {
+        ByteBuffer raw = ByteBuffer.allocate(MAXBLOCKS * CHECKSUM_BYTES + MAXFILES * (VERSION_BYTES + PARENT_BYTES));
+        for (int crc : blockCrc) raw.putInt(crc);
+        for (long version : slotVersion) raw.putLong(version);
+        for (int parent : slotParent) {
+            raw.put((byte) (parent == PARENT_UNKNOWN ? 0 : parent == DirectoryIndex.ROOT ? 0xFF : parent + 1));
+        }
+        writeFullyAt(raw.array(), 0, raw.capacity(), checksumOffset);
+    }
+
+    // Runs the tasks on IO_POOL when there is enough work to split, else inline.
+    // FileChannel closes itself when a thread is interrupted mid-I/O, for every
+    // user of the image, so nothing here waits interruptibly or cancels a task:
+    // the caller's interrupt status is left alone for it to act on later.
+    private void runAll(java.util.List<Callable<Void>> tasks, int blocks, String metric) throws IOException {
+        if (tasks.size() < 2 || blocks < PARALLEL_MIN_BLOCKS) {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+            return;
+        }
+        metrics.increment(metric);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        java.util.List<ForkJoinTask<?>> running = new java.util.ArrayList<>();
+        for (Callable<Void> task : tasks) {
+            running.add(IO_POOL.submit(() -> {
+                try {
+                    task.call();
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (ForkJoinTask<?> task : running) task.quietlyJoin();
+        Exception e = failure.get();
+        if (e instanceof IOException io) throw io;
+        if (e != null) throw new IOException(e);
+    }
+
+    // A real CRC of 0 is stored as is and simply goes unverified.
+    private static int crcOf(byte[] buf, int from) {
+        CRC32C crc = new CRC32C();
+        crc.update(buf, from, BLOCK_SIZE);
+        return (int) crc.getValue();
+    }
+
+    private boolean checksumMatches(int block, byte[] buf, int from) {
+        int expected = blockCrc[block];
+        return expected == 0 || crcOf(buf, from) == expected;
+    }
+
+    private void loadChecksums() throws IOException {
+        byte[] raw = new byte[MAXBLOCKS * CHECKSUM_BYTES];
+        readFullyAt(raw, 0, raw.length, checksumOffset);
+        ByteBuffer.wrap(raw).asIntBuffer().get(blockCrc);
+    }
+
+    // Must hold writeLock.
+    private void bumpVersion(int slot) {
+        slotVersion[slot]++;
+        fentryTable[slot].setVersion(slotVersion[slot]);
+    }
+
+    private static String etagOf(int slot, FEntry entry) {
+        return slot + "-" + entry.getVersion();
+    }
+
+    private long nextEpoch() {
+        return current.get().getEpoch() + 1;
+    }
+
+    // Must hold writeLock. The previous snapshot inherits the blocks unlinked
+    // by this mutation, since it (and older ones) may still be read from.
+    private void publish() throws IOException {
+        MetadataSnapshot next = new MetadataSnapshot(nextEpoch(), fentryTable, fnodesTable, dirIndex);
+        MetadataSnapshot prev = current.getAndSet(next);
+        prev.retire(unlinked);
+        retired.addLast(prev);
+        unlinked = new java.util.ArrayList<>();
+        reclaimRetired();
+    }
+
+    // Must hold writeLock. A block unlinked after snapshot k is visible to every
+    // snapshot from blockEpoch[block] up to k, so it is freed once none of those is pinned.
+    private void reclaimRetired() throws IOException {
+        for (MetadataSnapshot snap : retired) {
+            if (snap.getGarbage().isEmpty()) continue;
+            java.util.List<Integer> stillReferenced = new java.util.ArrayList<>();
+            for (int block : snap.getGarbage()) {
+                if (isPinnedBetween(blockEpoch[block], snap.getEpoch())) stillReferenced.add(block);
+                else freeBlock(block);
+            }
+            snap.setGarbage(stillReferenced);
+        }
+        retired.removeIf(snap -> !snap.isPinned() && snap.getGarbage().isEmpty());
+    }
+
+    private boolean isPinnedBetween(long fromEpoch, long toEpoch) {
+        for (MetadataSnapshot snap : retired) {
+            if (snap.isPinned() && snap.getEpoch() >= fromEpoch && snap.getEpoch() <= toEpoch) return true;
+        }
+        return false;
+    }
+
+    private MetadataSnapshot pinSnapshot() {
+        while (true) {
+            MetadataSnapshot snap = current.get();
+            snap.pin();
+            // still current after pinning -> a writer cannot have reclaimed it yet
+            if (current.get() == snap) return snap;
+            unpinSnapshot(snap);
+        }
+    }
+
+    private void unpinSnapshot(MetadataSnapshot snap) {
+        if (snap.unpin() && writeLock.tryLock()) {
+            try {
+                reclaimRetired();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    // A pending interrupt would make the channel close itself for every user
+    // of the image, so it is held back for the duration of the call.
+    private void writeFullyAt(byte[] src, int from, int length, long position) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(src, from, length);
+            while (buf.hasRemaining()) {
+                channel.write(buf, position + (buf.position() - from));
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readFullyAt(byte[] dst, int from, int length, long position) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(dst, from, length);
+            while (buf.hasRemaining()) {
+                int n = channel.read(buf, position + (buf.position() - from));
+                if (n < 0) throw new EOFException("Unexpected end of disk at " + position);
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    // Returns contents itself when compressing would not save any space.
+    private byte[] compress(byte[] contents) {
+        byte[] encoded = LzCodec.compress(contents);
+        int physical = COMPRESSED_HEADER_BYTES + encoded.length;
+        if (physical >= contents.length) return contents;
+
+        byte[] payload = new byte[physical];
+        payload[0] = (byte) (physical >> 8);
+        payload[1] = (byte) (physical);
+        System.arraycopy(encoded, 0, payload, COMPRESSED_HEADER_BYTES, encoded.length);
+        return payload;
+    }
+
+    // One read for the whole metadata region and checkpoint.
+    // @return true if the checkpoint's free-block bitmap can be trusted
+    private boolean loadMetaData() throws IOException {
+        byte[] meta = new byte[metadataBytes + checkpointBytes + versionBytes];
+        readFullyAt(meta, 0, meta.length, 0);
+
+        // images from before the full versions only have the low 16 bits
+        ByteBuffer versions = ByteBuffer.allocate(MAXFILES * (VERSION_BYTES + PARENT_BYTES));
+        readFullyAt(versions.array(), 0, versions.capacity(), versionOffset);
         for (int i = 0; i < MAXFILES; i++) {
-            disk.seek(offsetOfFEntry(i));
+            int base = metadataBytes + checkpointBytes + 2 * i;
+            int low = ((meta[base] & 0xFF) << 8) | (meta[base + 1] & 0xFF);
+            slotVersion[i] = Math.max(versions.getLong(), low);
+        }
+        for (int i = 0; i < MAXFILES; i++) {
+            int code = versions.get() & 0xFF;
+            slotParent[i] = code == 0 ? PARENT_UNKNOWN : code == 0xFF ? DirectoryIndex.ROOT : code - 1;
+        }
 
-            byte[] raw = new byte[FENTRY_BYTES];
-            disk.read(raw);
+        // ---------- Load FEntries ----------
+        for (int i = 0; i < MAXFILES; i++) {
+            int base = (int) offsetOfFEntry(i);
+            byte[] raw = Arrays.copyOfRange(meta, base, base + FENTRY_BYTES);
 
             boolean empty = true;
             for (byte b : raw) {
@@ -138,17 +476,22 @@ public class FileSystemManager {
 
             String name = new String(raw, 0, end);
 
-            short size  = (short) (((raw[11] & 0xFF) << 8) | (raw[12] & 0xFF));
+            int rawSize = ((raw[11] & 0xFF) << 8) | (raw[12] & 0xFF);
+            short size  = (short) (rawSize & MAX_FILE_SIZE);
             short first = (short) (((raw[13] & 0xFF) << 8) | (raw[14] & 0xFF));
 
             fentryTable[i] = new FEntry(name, size, first);
+            fentryTable[i].setDirectory((rawSize & DIRECTORY_FLAG) != 0);
+            fentryTable[i].setVersion(slotVersion[i]);
+            if ((rawSize & COMPRESSED_FLAG) != 0) {
+                fentryTable[i].setCompressed(true, (short) 0); // length comes from the chain on first read
+            }
         }
 
+        // ---------- Load FNodes ----------
         for (int i = 0; i < MAXBLOCKS; i++) {
-            disk.seek(offsetOfFNode(i));
-
-            byte[] raw = new byte[FNODE_BYTES];
-            disk.read(raw);
+            int base = (int) offsetOfFNode(i);
+            byte[] raw = Arrays.copyOfRange(meta, base, base + FNODE_BYTES);
 
             boolean empty = true;
             for (byte b : raw) {
@@ -169,61 +512,379 @@ public class FileSystemManager {
             node.setNext(next);
             fnodesTable[i] = node;
         }
+
+        // ---------- Checkpoint: free-block bitmap from a clean shutdown ----------
+        if (meta[metadataBytes] != STATE_CLEAN) return false;
+        for (int block = 0; block < MAXBLOCKS; block++) {
+            int bit = meta[metadataBytes + 1 + block / 8] & (1 << (block % 8));
+            freeBlockList[block] = bit != 0;
+        }
+        return true;
+    }
+
+    // Reads an entry's chain through the given node table and undoes compression.
+    private byte[] readContents(FEntry entry, IntFunction<FNode> nodes) throws IOException {
+        if (entry.getFilesize() == 0 || entry.getFirstBlock() == -1)
+            return new byte[0];
+
+        int physical = entry.getPhysicalSize();
+        if (entry.isCompressed() && physical == 0) {
+            physical = chainLength(entry, nodes) * BLOCK_SIZE; // header not read yet
+        }
+        // whole blocks are read so each can be checked against its checksum
+        int length = blocksNeeded(physical) * BLOCK_SIZE;
+        byte[] output = new byte[length];
+        int written = 0;
+
+        // walk the chain in memory first, so the runs can be read independently
+        java.util.List<Callable<Void>> runs = new java.util.ArrayList<>();
+        short nodeIndex = entry.getFirstBlock();
+        while (written < length) {
+            FNode node = nodeAt(nodes, nodeIndex);
+            if (node == null || !isDataBlock(node.getBlockIndex())) {
+                metrics.increment("read.brokenChains");
+                throw new IOException("ERROR: block chain of " + entry.getFilename() + " is broken");
+            }
+
+            // physically adjacent blocks are fetched with one read
+            int runStart  = node.getBlockIndex();
+            int runBlocks = 1;
+            nodeIndex = (short) node.getNext();
+            while (written + runBlocks * BLOCK_SIZE < length) {
+                FNode next = nodeAt(nodes, nodeIndex);
+                if (next == null || next.getBlockIndex() != runStart + runBlocks) break;
+                runBlocks++;
+                nodeIndex = (short) next.getNext();
+            }
+
+            int offset = written, count = runBlocks;
+            runs.add(() -> {
+                readFullyAt(output, offset, count * BLOCK_SIZE, offsetOfBlock(runStart));
+                // verified run by run while the bytes are still in cache
+                for (int i = 0; i < count; i++) {
+                    if (!checksumMatches(runStart + i, output, offset + i * BLOCK_SIZE)) {
+                        metrics.increment("checksum.failures");
+                        throw new IOException("ERROR: checksum mismatch in block " + (runStart + i)
+                                + " of " + entry.getFilename());
+                    }
+                }
+                metrics.add("checksum.verifiedBlocks", count);
+                return null;
+            });
+            written += runBlocks * BLOCK_SIZE;
+        }
+        runAll(runs, length / BLOCK_SIZE, "io.parallelReads");
+
+        if (entry.isCompressed()) {
+            int stored = ((output[0] & 0xFF) << 8) | (output[1] & 0xFF);
+            return LzCodec.decompress(output, COMPRESSED_HEADER_BYTES,
+                    stored - COMPRESSED_HEADER_BYTES, entry.getFilesize());
+        }
+        return length == physical ? output : Arrays.copyOf(output, physical);
     }
 
+    private int chainLength(FEntry entry, IntFunction<FNode> nodes) {
+        int length = 0;
+        short nodeIndex = entry.getFirstBlock();
+        while (nodeIndex != -1 && length < MAXBLOCKS) {
+            FNode node = nodeAt(nodes, nodeIndex);
+            if (node == null) break;
+            length++;
+            nodeIndex = (short) node.getNext();
+        }
+        return length;
+    }
+
+    private FNode nodeAt(IntFunction<FNode> nodes, int nodeIndex) {
+        if (nodeIndex < 0 || nodeIndex >= MAXBLOCKS) return null;
+        return nodes.apply(nodeIndex);
+    }
+
+    private boolean isDataBlock(int block) {
+        return block >= firstDataBlockIndex && block < MAXBLOCKS;
+    }
+
+    // Every directory's records are read up front: root is whatever no directory
+    // lists, so it is only known once all of them are (at most MAXFILES chains).
+    // Records are checked against the FEntry table and recorded parents, which
+    // also covers a block torn by an in-place rewrite: a leaf whose records all
+    // check out gets its checksum resealed. An entry its parent does not list is
+    // an orphan, left out of the tree for fsck to report.
+    private void loadDirectories() throws IOException {
+        DirectoryIndex index = DirectoryIndex.empty();
+        boolean[] listed = new boolean[MAXFILES];
+
+        for (int i = 0; i < MAXFILES; i++) {
+            FEntry fe = fentryTable[i];
+            if (fe == null || !fe.isDirectory()) continue;
+
+            java.util.List<DirectoryIndex.Leaf> leaves = new java.util.ArrayList<>();
+            Map<Integer, Integer> unsealed = new TreeMap<>(); // block -> CRC of what it holds
+            NavigableMap<String, Integer> children = new TreeMap<>();
+            boolean blockLayout = !fe.isCompressed() && fe.getFilesize() == chainLength(fe, j -> fnodesTable[j]) * BLOCK_SIZE;
+            if (blockLayout) {
+                byte[] raw = new byte[BLOCK_SIZE];
+                for (short n = fe.getFirstBlock(); n != -1; n = (short) fnodesTable[n].getNext()) {
+                    int block = fnodesTable[n].getBlockIndex();
+                    readFullyAt(raw, 0, BLOCK_SIZE, offsetOfBlock(block));
+                    if (!checksumMatches(block, raw, 0)) {
+                        metrics.increment("checksum.failures");
+                        System.out.println("Block " + block + " of directory " + fe.getFilename() + " fails its checksum");
+                        unsealed.put(block, crcOf(raw, 0));
+                    }
+                    leaves.add(DirectoryIndex.Leaf.decode(raw, n));
+                }
+            } else {
+                children.putAll(DirectoryIndex.decodePacked(readContents(fe, j -> fnodesTable[j])));
+            }
+
+            // keep the on-disk leaves as they are unless a record had to be dropped
+            boolean clean = blockLayout;
+            String previous = null;
+            for (DirectoryIndex.Leaf leaf : leaves) {
+                for (int r = 0; r < leaf.size(); r++) {
+                    clean &= previous == null || previous.compareTo(leaf.names[r]) < 0;
+                    previous = leaf.names[r];
+                    children.put(leaf.names[r], leaf.slots[r]);
+                }
+            }
+            for (var it = children.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Integer> child = it.next();
+                int slot = child.getValue();
+                if (slot < MAXFILES && fentryTable[slot] != null && fentryTable[slot].getFilename().equals(child.getKey()) && !listed[slot]
+                        && (slotParent[slot] == PARENT_UNKNOWN || slotParent[slot] == i)) {
+                    listed[slot] = true;
+                } else {
+                    System.out.println("Skipping stale entry " + child.getKey() + " in directory " + fe.getFilename());
+                    it.remove();
+                    clean = false;
+                }
+            }
+            for (int slot : children.values()) slotParent[slot] = i;
+            boolean keep = clean && leaves.stream().allMatch(l -> l.size() > 0);
+            if (keep) {
+                for (Map.Entry<Integer, Integer> block : unsealed.entrySet()) {
+                    System.out.println("Resealing block " + block.getKey() + " of directory " + fe.getFilename());
+                    blockCrc[block.getKey()] = block.getValue();
+                }
+            }
+            index = index.withDirectory(i, keep ? leaves.toArray(new DirectoryIndex.Leaf[0]) : DirectoryIndex.pack(children));
+        }
+
+        NavigableMap<String, Integer> root = new TreeMap<>();
+        for (int i = 0; i < MAXFILES; i++) {
+            if (fentryTable[i] == null || listed[i]) continue;
+            boolean inRoot = slotParent[i] == PARENT_UNKNOWN || slotParent[i] == DirectoryIndex.ROOT;
+            if (inRoot && root.putIfAbsent(fentryTable[i].getFilename(), i) == null) {
+                slotParent[i] = DirectoryIndex.ROOT;
+            } else {
+                metrics.increment("dir.orphans");
+                System.out.println("Entry " + fentryTable[i].getFilename() + " in slot " + i + " is not listed by its directory, leaving it out");
+            }
+        }
+        dirIndex = index.withDirectory(DirectoryIndex.ROOT, DirectoryIndex.pack(root));
+    }
+
+    // Must hold writeLock. Writes only the leaves of dir that are not on disk
+    // as they are, each into a fresh block behind its own FNode, then relinks the
+    // chain in leaf order. Snapshot readers never read directory blocks, so when
+    // the image is full a leaf is rewritten in place instead (unless dedup shares
+    // its block). Nothing is changed if a block cannot be found or written.
+    // @return after, with every leaf's FNode filled in
+    private DirectoryIndex.Leaf[] saveDirectory(int dir, DirectoryIndex.Leaf[] after) throws Exception {
+        FEntry entry = fentryTable[dir];
+        java.util.Set<Integer> chain = new java.util.HashSet<>();
+        for (short n = entry.getFirstBlock(); n != -1 && chain.size() < MAXBLOCKS; n = (short) fnodesTable[n].getNext()) {
+            chain.add((int) n);
+        }
+        java.util.Set<DirectoryIndex.Leaf> onDisk = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<>());
+        if (!entry.isCompressed() && entry.getFilesize() == chain.size() * BLOCK_SIZE) {
+            onDisk.addAll(Arrays.asList(dirIndex.leaves(dir)));
+        }
+
+        // ---------- Plan: which leaves need a node, which need writing ----------
+        DirectoryIndex.Leaf[] saved = after.clone();
+        java.util.Set<Integer> kept = new java.util.HashSet<>();
+        java.util.List<Integer> dirty = new java.util.ArrayList<>();
+        int needNodes = 0;
+        for (int i = 0; i < saved.length; i++) {
+            int node = saved[i].node;
+            if (node != -1 && chain.contains(node) && kept.add(node)) {
+                if (!onDisk.contains(saved[i])) dirty.add(i);
+            } else {
+                saved[i] = saved[i].withNode(-1);
+                dirty.add(i);
+                needNodes++;
+            }
+        }
+        java.util.List<Integer> freeNodes = new java.util.ArrayList<>();
+        for (int n = 0; n < MAXBLOCKS; n++) {
+            if (fnodesTable[n] == null || (chain.contains(n) && !kept.contains(n))) freeNodes.add(n);
+        }
+        if (freeNodes.size() < needNodes)
+            throw new Exception("ERROR: no free FNODE slots");
+
+        // fresh blocks go to leaves without one first; the rest may fall back to in place
+        dirty.sort(java.util.Comparator.comparing(i -> saved[i].node != -1));
+        java.util.List<Integer> freeBlocks = new java.util.ArrayList<>();
+        for (int block = firstDataBlockIndex; block < MAXBLOCKS && freeBlocks.size() < dirty.size(); block++) {
+            if (freeBlockList[block]) freeBlocks.add(block);
+        }
+        int[] target = new int[saved.length];
+        java.util.SortedMap<Integer, byte[]> pendingWrites = new TreeMap<>();
+        int fresh = 0;
+        for (int i : dirty) {
+            if (fresh < freeBlocks.size()) {
+                target[i] = freeBlocks.get(fresh++);
+            } else if (saved[i].node != -1 && blockRefs[fnodesTable[saved[i].node].getBlockIndex()] == 1) {
+                target[i] = fnodesTable[saved[i].node].getBlockIndex();
+                metrics.increment("dir.inPlaceWrites");
+            } else {
+                throw new Exception("ERROR: no free blocks for directory " + entry.getFilename());
+            }
+            pendingWrites.put(target[i], saved[i].encode());
+        }
+
+        // ---------- Write, then relink: no table changes until the blocks are down ----------
+        try {
+            writeBlocks(pendingWrites);
+        } catch (IOException e) {
+            for (int block : pendingWrites.keySet()) if (freeBlockList[block]) blockCrc[block] = 0;
+            throw e;
+        }
+
+        for (int n : chain) {
+            if (kept.contains(n)) continue;
+            int block = fnodesTable[n].getBlockIndex();
+            if (--blockRefs[block] == 0) {
+                forgetDigest(block);
+                unlinked.add(block);
+            }
+            fnodesTable[n] = null;
+        }
+        int nextFree = 0;
+        for (int i : dirty) {
+            int block = target[i];
+            forgetDigest(block);
+            if (saved[i].node == -1) {
+                int node = freeNodes.get(nextFree++);
+                fnodesTable[node] = new FNode(block);
+                saved[i] = saved[i].withNode(node);
+            } else {
+                FNode node = fnodesTable[saved[i].node];
+                int old = node.getBlockIndex();
+                if (old == block) continue; // rewritten in place
+                if (--blockRefs[old] == 0) {
+                    forgetDigest(old);
+                    unlinked.add(old);
+                }
+                node.setBlockIndex(block);
+            }
+            freeBlockList[block] = false;
+            blockEpoch[block] = nextEpoch();
+            blockRefs[block] = 1;
+        }
+        for (int i = 0; i < saved.length; i++) {
+            fnodesTable[saved[i].node].setNext(i + 1 < saved.length ? saved[i + 1].node : -1);
+        }
+
+        entry.setFirstBlock((short) (saved.length == 0 ? -1 : saved[0].node));
+        entry.setFilesize((short) (saved.length * BLOCK_SIZE));
+        entry.setCompressed(false, (short) 0);
+        bumpVersion(dir);
+        return saved;
+    }
+
+    // One write for the whole region. The checkpoint is marked dirty until close().
     private void saveMetaData() throws IOException {
+        byte[] meta = new byte[metadataBytes + checkpointBytes + versionBytes];
+
         // ---------- Save FEntries ----------
         for (int i = 0; i < MAXFILES; i++) {
-            disk.seek(offsetOfFEntry(i));
-
             FEntry fe = fentryTable[i];
-            byte[] raw = new byte[FENTRY_BYTES];
+            int base = (int) offsetOfFEntry(i);
 
             if (fe != null) {
                 byte[] name = fe.getFilename().getBytes();
                 int length = Math.min(name.length, 11);
-                System.arraycopy(name, 0, raw, 0, length);
-
-                raw[11] = (byte) (fe.getFilesize() >> 8);
-                raw[12] = (byte) (fe.getFilesize());
-                raw[13] = (byte) (fe.getFirstBlock() >> 8);
-                raw[14] = (byte) (fe.getFirstBlock());
+                System.arraycopy(name, 0, meta, base, length);
+
+                int rawSize = fe.getFilesize()
+                        | (fe.isCompressed() ? COMPRESSED_FLAG : 0)
+                        | (fe.isDirectory() ? DIRECTORY_FLAG : 0);
+                meta[base + 11] = (byte) (rawSize >> 8);
+                meta[base + 12] = (byte) (rawSize);
+                meta[base + 13] = (byte) (fe.getFirstBlock() >> 8);
+                meta[base + 14] = (byte) (fe.getFirstBlock());
             }
-
-            disk.write(raw);
         }
 
         // ---------- Save FNodes ----------
         for (int i = 0; i < MAXBLOCKS; i++) {
-            disk.seek(offsetOfFNode(i));
-
             FNode fn = fnodesTable[i];
-            byte[] raw = new byte[FNODE_BYTES];
+            int base = (int) offsetOfFNode(i);
 
             if (fn != null) {
-                raw[0] = (byte) (fn.getBlockIndex() >> 8);
-                raw[1] = (byte) (fn.getBlockIndex());
-                raw[2] = (byte) (fn.getNext() >> 8);
-                raw[3] = (byte) (fn.getNext());
+                meta[base]     = (byte) (fn.getBlockIndex() >> 8);
+                meta[base + 1] = (byte) (fn.getBlockIndex());
+                meta[base + 2] = (byte) (fn.getNext() >> 8);
+                meta[base + 3] = (byte) (fn.getNext());
             }
-            disk.write(raw);
         }
+
+        meta[metadataBytes] = STATE_DIRTY;
+        for (int i = 0; i < MAXFILES; i++) {
+            int base = metadataBytes + checkpointBytes + 2 * i;
+            meta[base]     = (byte) (slotVersion[i] >> 8);
+            meta[base + 1] = (byte) (slotVersion[i]);
+        }
+        saveTrailer(); // before the metadata that makes new blocks reachable
+        writeFullyAt(meta, 0, meta.length, 0);
+    }
+
+    // Blocks only reachable from pinned snapshots are unreferenced on disk, so the
+    // bitmap is derived from the FNode references rather than from freeBlockList.
+    private void writeCleanCheckpoint() throws IOException {
+        byte[] checkpoint = new byte[checkpointBytes];
+        checkpoint[0] = STATE_CLEAN;
+        for (int block = firstDataBlockIndex; block < MAXBLOCKS; block++) {
+            if (blockRefs[block] == 0) checkpoint[1 + block / 8] |= (byte) (1 << (block % 8));
+        }
+        saveTrailer();
+        writeFullyAt(checkpoint, 0, checkpoint.length, metadataBytes);
     }
 
     public FileSystemManager(String filename, int totalSize) {
         try {
             disk = new RandomAccessFile(filename, "rw");
-            disk.setLength(totalSize);
             computeMetaDataBytes();
+            disk.setLength(Math.max(totalSize, parentOffset + (long) MAXFILES * PARENT_BYTES));
+            channel = disk.getChannel();
             System.out.println("First data block index: " + firstDataBlockIndex);
             System.out.println("Disk created with size: " + totalSize + " bytes");
 
             fentryTable   = new FEntry[MAXFILES];
             fnodesTable   = new FNode[MAXBLOCKS];
             freeBlockList = new boolean[MAXBLOCKS];
-
-            loadMetaData();
-            rebuildFreeBlocks();
+            blockEpoch    = new long[MAXBLOCKS];
+            blockRefs     = new int[MAXBLOCKS];
+            slotVersion   = new long[MAXFILES];
+            slotParent    = new int[MAXFILES];
+            blockCrc      = new int[MAXBLOCKS];
+
+            long started = System.nanoTime();
+            if (loadMetaData()) {
+                metrics.increment("startup.cleanLoads");
+            } else {
+                System.out.println("No clean checkpoint, rebuilding free block list.");
+                rebuildFreeBlocks();
+                metrics.increment("startup.rebuilds");
+            }
+            countBlockRefs();
+            loadChecksums();
+            loadDirectories();
+            current.set(new MetadataSnapshot(0, fentryTable, fnodesTable, dirIndex));
+            metrics.add("startup.nanos", System.nanoTime() - started);
 
         } catch (IOException e) {
             System.out.println("Disk could not be created.");
@@ -231,6 +892,194 @@ public class FileSystemManager {
         }
     }
 
+    // Must hold writeLock. Writes contents to a fresh chain for the entry in slot,
+    // then unlinks the old chain. The caller saves metadata and publishes.
+    private void replaceContents(int slot, byte[] contents) throws Exception {
+        FEntry entry = fentryTable[slot];
+
+        // ---------- Case: writing 0 bytes -> clear file ----------
+        if (contents.length == 0) {
+            unlinkChain(entry.getFirstBlock());
+
+            entry.setFirstBlock((short) -1);
+            entry.setFilesize((short) 0);
+            entry.setCompressed(false, (short) 0);
+            bumpVersion(slot);
+            System.out.println("Wrote 0 Bytes to " + entry.getFilename() + " (cleared)");
+            return;
+        }
+
+        if (contents.length > MAX_FILE_SIZE)
+            throw new Exception("ERROR: file too large");
+
+        long started = System.nanoTime();
+        byte[] payload = contents;
+        boolean compressed = false;
+        if (compression) {
+            payload = compress(contents);
+            compressed = payload != contents;
+            metrics.add("compression.nanos", System.nanoTime() - started);
+            metrics.add("compression.logicalBytes", contents.length);
+            metrics.add("compression.physicalBytes", payload.length);
+        }
+
+        // ---------- Split into padded blocks, resolve shared ones ----------
+        int requireBlocks = blocksNeeded(payload.length);
+
+        byte[][] chunks = new byte[requireBlocks][];
+        for (int i = 0; i < requireBlocks; i++) {
+            int from = i * BLOCK_SIZE;
+            chunks[i] = Arrays.copyOfRange(payload, from, from + BLOCK_SIZE); // zero padded
+        }
+
+        String[] digests = new String[requireBlocks];
+        int[] planned = new int[requireBlocks]; // existing block to share, or -1
+        Arrays.fill(planned, -1);
+        int newBlocks = requireBlocks;
+        if (deduplication) {
+            if (blockByDigest == null) buildDigestIndex();
+            Map<String, Integer> firstInWrite = new java.util.HashMap<>();
+            for (int i = 0; i < requireBlocks; i++) {
+                digests[i] = digestOf(chunks[i]);
+                Integer shared = blockByDigest.get(digests[i]);
+                if (shared != null) {
+                    planned[i] = shared;
+                    newBlocks--;
+                } else if (firstInWrite.putIfAbsent(digests[i], i) != null) {
+                    newBlocks--; // repeats an earlier block of this same write
+                }
+            }
+            metrics.add("dedup.hashNanos", System.nanoTime() - started);
+            metrics.add("dedup.hits", requireBlocks - newBlocks);
+            metrics.add("dedup.misses", newBlocks);
+        }
+
+        // ---------- Allocate new blocks & nodes ----------
+        var freeBlocks = findFreeDataBlocks(newBlocks);
+        if (newBlocks > 0 && freeBlocks.isEmpty())
+            throw new Exception("ERROR: file too large (no free blocks)");
+
+        var freeNodes = findFreeNodeIndecies(requireBlocks);
+        if (freeNodes.isEmpty())
+            throw new Exception("ERROR: no free FNODE slots");
+
+        java.util.List<Integer> newNodesUsed  = new java.util.ArrayList<>();
+        java.util.List<Integer> linkedBlocks  = new java.util.ArrayList<>();
+        java.util.List<Integer> newBlocksUsed = new java.util.ArrayList<>();
+        Map<String, Integer> writtenInWrite = new java.util.HashMap<>();
+        java.util.SortedMap<Integer, byte[]> pendingWrites = new TreeMap<>();
+        short newHead = -1;
+        short prevNode = -1;
+
+        try {
+            for (int i = 0; i < requireBlocks; i++) {
+                int nodeIndex = freeNodes.get(i);
+                int block     = planned[i];
+                if (block == -1 && deduplication) {
+                    block = writtenInWrite.getOrDefault(digests[i], -1);
+                }
+
+                if (block == -1) {
+                    block = freeBlocks.get(newBlocksUsed.size());
+                    pendingWrites.put(block, chunks[i]);
+
+                    newBlocksUsed.add(block);
+                    freeBlockList[block] = false;
+                    blockEpoch[block] = nextEpoch();
+                    if (deduplication) {
+                        writtenInWrite.put(digests[i], block);
+                        blockDigest[block] = digests[i];
+                        blockByDigest.put(digests[i], block);
+                    }
+                }
+
+                FNode node = new FNode(block);
+                node.setNext(-1);
+                fnodesTable[nodeIndex] = node;
+
+                if (prevNode == -1) {
+                    newHead = (short) nodeIndex;
+                } else {
+                    fnodesTable[prevNode].setNext(nodeIndex);
+                }
+                prevNode = (short) nodeIndex;
+
+                newNodesUsed.add(nodeIndex);
+                linkedBlocks.add(block);
+                blockRefs[block]++;
+            }
+
+            writeBlocks(pendingWrites);
+
+            // ---------- Unlink old chain AFTER new one is safely written ----------
+            // (its blocks are reclaimed once in-flight readers are done with them)
+            unlinkChain(entry.getFirstBlock());
+
+            entry.setFirstBlock(newHead);
+            entry.setFilesize((short) contents.length);
+            entry.setCompressed(compressed, (short) payload.length);
+            bumpVersion(slot);
+            metrics.add("write.nanos", System.nanoTime() - started);
+            System.out.println("Wrote " + contents.length + " Bytes to " + entry.getFilename() +
+                    " using " + requireBlocks + " blocks (" + newBlocksUsed.size() + " new" +
+                    (compressed ? ", compressed to " + payload.length + " Bytes" : "") + ").");
+
+        } catch (Exception ex) {
+            // rollback
+            for (int i = 0; i < newNodesUsed.size(); i++) {
+                fnodesTable[newNodesUsed.get(i)] = null;
+                blockRefs[linkedBlocks.get(i)]--;
+            }
+            for (int block : newBlocksUsed) {
+                try {
+                    writeFullyAt(new byte[BLOCK_SIZE], 0, BLOCK_SIZE, offsetOfBlock(block));
+                    blockCrc[block] = 0;
+                } catch (Exception ignore) {}
+                forgetDigest(block);
+                if (block >= 0 && block < freeBlockList.length) freeBlockList[block] = true;
+            }
+            throw ex;
+        }
+    }
+
+    // Must hold writeLock. New entries go into the parent directory's index, and
+    // non-root parents get the block holding the new record rewritten.
+    private void createEntry(String path, boolean directory) throws Exception {
+        int parent = dirIndex.resolveParent(path);
+        String name = DirectoryIndex.leafName(path);
+        if (name.isEmpty()) {
+            throw new Exception("File name is null or empty.");
+        }
+        if (dirIndex.lookup(parent, name) != -1) {
+            throw new Exception("File already exists.");
+        }
+
+        int fileSlot = findFreeSlot();
+        if (fileSlot == -1) {
+            throw new Exception("No free slot found.");
+        }
+
+        FEntry newFile = new FEntry(name, (short) 0, (short) -1);
+        newFile.setDirectory(directory);
+        fentryTable[fileSlot] = newFile;
+        slotParent[fileSlot] = parent;
+        bumpVersion(fileSlot);
+
+        DirectoryIndex updated = dirIndex.withChild(parent, name, fileSlot);
+        if (directory) updated = updated.withDirectory(fileSlot, new DirectoryIndex.Leaf[0]);
+        try {
+            if (parent != DirectoryIndex.ROOT)
+                updated = updated.withDirectory(parent, saveDirectory(parent, updated.leaves(parent)));
+        } catch (Exception e) {
+            fentryTable[fileSlot] = null;
+            throw e;
+        }
+        dirIndex = updated;
+        saveMetaData();
+        publish();
+    }
+
+    @Override
     public void createFile(String fileName) throws Exception {
         if (fileName == null || fileName.isEmpty()) {
             throw new Exception("File name is null or empty.");
@@ -238,237 +1087,606 @@ public class FileSystemManager {
 
         writeLock.lock();
         try {
-            if (findFile(fileName) != -1) {
-                throw new Exception("File already exists.");
-            }
+            createEntry(fileName, false);
+            if (listener != null) listener.fileCreated(fileName);
+            System.out.println("Created File: " + fileName);
+        } finally {
+            writeLock.unlock();
+        }
+    }
 
-            int fileSlot = findFreeSlot();
-            if (fileSlot == -1) {
-                throw new Exception("No free slot found.");
-            }
+    @Override
+    public void createDirectory(String path) throws Exception {
+        if (path == null || path.isEmpty()) {
+            throw new Exception("Directory name is null or empty.");
+        }
 
-            FEntry newFile = new FEntry(fileName, (short) 0, (short) -1);
-            fentryTable[fileSlot] = newFile;
-            saveMetaData();
-            System.out.println("Created File: " + fileName);
+        writeLock.lock();
+        try {
+            createEntry(path, true);
+            if (listener != null) listener.directoryCreated(path);
+            System.out.println("Created Directory: " + path);
         } finally {
             writeLock.unlock();
         }
     }
 
+    @Override
     public void writeFile(String filename, byte[] contents) throws Exception {
-        int fileIndex = findFile(filename);
-        if (fileIndex == -1)
-            throw new Exception("ERROR: file " + filename + " does not exist");
+        writeLock.lock();
+        try {
+            int fileIndex = findFile(filename);
+            if (fileIndex == -1)
+                throw new Exception("ERROR: file " + filename + " does not exist");
+            if (fentryTable[fileIndex].isDirectory())
+                throw new Exception("ERROR: " + filename + " is a directory");
 
+            replaceContents(fileIndex, contents);
+            saveMetaData();
+            publish();
+            if (listener != null) listener.fileWritten(filename, contents);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public byte[] readFile(String filename) throws Exception {
+        MetadataSnapshot snap = pinSnapshot();
+        try {
+            FEntry entry = snap.findFile(filename);
+            if (entry == null)
+                throw new Exception("ERROR: file " + filename + " does not exist");
+            if (entry.isDirectory())
+                throw new Exception("ERROR: " + filename + " is a directory");
+
+            return readContents(entry, snap::node);
+        } finally {
+            unpinSnapshot(snap);
+        }
+    }
+
+    @Override
+    public FileStat stat(String path) throws Exception {
+        MetadataSnapshot snap = pinSnapshot();
+        try {
+            int slot = snap.dirs().resolve(path);
+            if (slot < 0)
+                throw new Exception("ERROR: file " + path + " does not exist");
+            FEntry entry = snap.entry(slot);
+            return new FileStat(path, entry.getFilesize(), entry.isDirectory(), etagOf(slot, entry));
+        } finally {
+            unpinSnapshot(snap);
+        }
+    }
+
+    @Override
+    public VersionedContents readFileIfChanged(String filename, String etag) throws Exception {
+        MetadataSnapshot snap = pinSnapshot();
+        try {
+            int slot = snap.dirs().resolve(filename);
+            if (slot < 0)
+                throw new Exception("ERROR: file " + filename + " does not exist");
+            FEntry entry = snap.entry(slot);
+            if (entry.isDirectory())
+                throw new Exception("ERROR: " + filename + " is a directory");
+
+            String current = etagOf(slot, entry);
+            if (current.equals(etag)) {
+                metrics.increment("read.notModified");
+                return null;
+            }
+            return new VersionedContents(readContents(entry, snap::node), current);
+        } finally {
+            unpinSnapshot(snap);
+        }
+    }
+
+    @Override
+    public String writeFileIf(String filename, String etag, byte[] contents) throws Exception {
         writeLock.lock();
         try {
+            int fileIndex = findFile(filename);
+            if (fileIndex == -1)
+                throw new Exception("ERROR: file " + filename + " does not exist");
+            if (fentryTable[fileIndex].isDirectory())
+                throw new Exception("ERROR: " + filename + " is a directory");
+
+            String current = etagOf(fileIndex, fentryTable[fileIndex]);
+            if (!current.equals(etag)) {
+                metrics.increment("write.preconditionFailed");
+                throw new PreconditionFailedException(current);
+            }
+            replaceContents(fileIndex, contents);
+            saveMetaData();
+            publish();
+            if (listener != null) listener.fileWritten(filename, contents);
+            return etagOf(fileIndex, fentryTable[fileIndex]);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void deleteFile(String fileName) throws Exception {
+        writeLock.lock();
+        try {
+            int fileIndex = findFile(fileName);
+            if (fileIndex == -1)
+                throw new Exception("ERROR: file " + fileName + " does not exist");
+
             FEntry entry = fentryTable[fileIndex];
+            if (entry.isDirectory() && !dirIndex.isEmpty(fileIndex))
+                throw new Exception("ERROR: directory " + fileName + " is not empty");
 
-            // ---------- Case: writing 0 bytes -> clear file ----------
-            if (contents.length == 0) {
-                short nodeIndex = entry.getFirstBlock();
+            int parent = dirIndex.resolveParent(fileName);
+            DirectoryIndex updated = dirIndex.withoutChild(parent, entry.getFilename());
+            if (entry.isDirectory()) updated = updated.withoutDirectory(fileIndex);
 
-                while (nodeIndex != -1) {
-                    FNode node = fnodesTable[nodeIndex];
-                    if (node == null) break;
+            // the cleared FEntry reaches the disk before the parent's record goes,
+            // so a crash in between only leaves a stale record, which loading skips
+            unlinkChain(entry.getFirstBlock());
+            fentryTable[fileIndex] = null;
+            saveMetaData();
 
-                    int block = node.getBlockIndex();
-                    if (block >= 0 && block < freeBlockList.length) {
-                        long off = offsetOfBlock(block);
-                        disk.seek(off);
-                        disk.write(new byte[BLOCK_SIZE]); // zero out
-                        freeBlockList[block] = true;
-                    }
-                    int next = node.getNext();
-                    fnodesTable[nodeIndex] = null;
-                    nodeIndex = (short) next;
+            // a delete never grows the parent, so on a full image its leaf is
+            // rewritten in place; the child's blocks only free up after publish
+            if (parent != DirectoryIndex.ROOT) {
+                try {
+                    updated = updated.withDirectory(parent, saveDirectory(parent, updated.leaves(parent)));
+                } catch (Exception e) {
+                    System.out.println("Directory block still lists deleted " + fileName + ": " + e.getMessage());
                 }
-
-                entry.setFirstBlock((short) -1);
-                entry.setFilesize((short) 0);
                 saveMetaData();
-                System.out.println("Wrote 0 Bytes to " + filename + " (cleared)");
-                return;
             }
+            dirIndex = updated;
+            publish();
+            if (listener != null) listener.fileDeleted(fileName);
+            System.out.println("Deleted file: " + fileName);
+        } finally {
+            writeLock.unlock();
+        }
+    }
 
-            // ---------- Allocate new blocks & nodes ----------
-            int requireBlocks = blocksNeeded(contents.length);
-
-            var freeBlocks = findFreeDataBlocks(requireBlocks);
-            if (freeBlocks.isEmpty())
-                throw new Exception("ERROR: file too large (no free blocks)");
+    @Override
+    public boolean exists(String path) {
+        MetadataSnapshot snap = pinSnapshot();
+        try {
+            return snap.findFile(path) != null;
+        } finally {
+            unpinSnapshot(snap);
+        }
+    }
 
-            var freeNodes = findFreeNodeIndecies(requireBlocks);
-            if (freeNodes.isEmpty())
-                throw new Exception("ERROR: no free FNODE slots");
+    @Override
+    public String[] listFiles() {
+        return listFiles("");
+    }
 
-            java.util.List<Integer> newNodesUsed  = new java.util.ArrayList<>();
-            java.util.List<Integer> newBlocksUsed = new java.util.ArrayList<>();
-            short newHead = -1;
-            short prevNode = -1;
+    /** Names in a directory, sorted; sub-directories carry a trailing "/". */
+    @Override
+    public String[] listFiles(String directory) {
+        MetadataSnapshot snap = pinSnapshot();
+        try {
+            int dir = snap.dirs().resolve(directory == null ? "" : directory);
+            if (!snap.dirs().isDirectory(dir)) return new String[0];
 
-            try {
-                int remaining = contents.length;
-                int cursor    = 0;
-
-                for (int i = 0; i < requireBlocks; i++) {
-                    int nodeIndex = freeNodes.get(i);
-                    int block     = freeBlocks.get(i);
-
-                    int chunk = Math.min(remaining, BLOCK_SIZE);
-                    long off  = offsetOfBlock(block);
-                    disk.seek(off);
-                    disk.write(contents, cursor, chunk);
-                    if (chunk < BLOCK_SIZE) {
-                        disk.write(new byte[BLOCK_SIZE - chunk]); // pad rest with zeros
-                    }
+            java.util.List<String> names = new java.util.ArrayList<>();
+            for (var it = snap.dirs().children(dir, null, true); it.hasNext(); ) {
+                Map.Entry<String, Integer> child = it.next();
+                boolean isDir = snap.dirs().isDirectory(child.getValue());
+                names.add(isDir ? child.getKey() + DirectoryIndex.SEPARATOR : child.getKey());
+            }
+            return names.toArray(new String[0]);
+        } finally {
+            unpinSnapshot(snap);
+        }
+    }
 
-                    FNode node = new FNode(block);
-                    node.setNext(-1);
-                    fnodesTable[nodeIndex] = node;
+    @Override
+    public ListPage listPage(String prefix, int limit, String cursor) {
+        if (prefix == null) prefix = "";
+        int slash = prefix.lastIndexOf(DirectoryIndex.SEPARATOR);
+        String directory  = slash == -1 ? "" : prefix.substring(0, slash);
+        String namePrefix = prefix.substring(slash + 1);
 
-                    if (prevNode == -1) {
-                        newHead = (short) nodeIndex;
-                    } else {
-                        fnodesTable[prevNode].setNext(nodeIndex);
-                    }
-                    prevNode = (short) nodeIndex;
+        // one snapshot per page: no lock, and writers are never held up by a scan
+        MetadataSnapshot snap = pinSnapshot();
+        try {
+            int dir = snap.dirs().resolve(directory);
+            if (!snap.dirs().isDirectory(dir)) return new ListPage(java.util.List.of(), null);
 
-                    newNodesUsed.add(nodeIndex);
-                    newBlocksUsed.add(block);
+            // resume after the cursor if it is past the prefix, else at the prefix
+            boolean afterCursor = cursor != null && cursor.compareTo(namePrefix) >= 0;
+            var range = snap.dirs().children(dir, afterCursor ? cursor : namePrefix, !afterCursor);
 
-                    freeBlockList[block] = false;
-                    remaining -= chunk;
-                    cursor    += chunk;
+            java.util.List<String> names = new java.util.ArrayList<>();
+            String last = null;
+            while (range.hasNext()) {
+                Map.Entry<String, Integer> child = range.next();
+                if (!child.getKey().startsWith(namePrefix)) break;
+                if (names.size() == limit) {
+                    return new ListPage(names, last);
                 }
+                boolean isDir = snap.dirs().isDirectory(child.getValue());
+                names.add(isDir ? child.getKey() + DirectoryIndex.SEPARATOR : child.getKey());
+                last = child.getKey();
+            }
+            return new ListPage(names, null);
+        } finally {
+            unpinSnapshot(snap);
+        }
+    }
 
-                // ---------- Free old chain AFTER new one is safely written ----------
-                short old = entry.getFirstBlock();
-                while (old != -1) {
-                    FNode node = fnodesTable[old];
-                    if (node == null) break;
-                    int blockIndex = node.getBlockIndex();
-                    if (blockIndex >= 0 && blockIndex < freeBlockList.length) {
-                        long off = offsetOfBlock(blockIndex);
-                        disk.seek(off);
-                        disk.write(new byte[BLOCK_SIZE]);
-                        freeBlockList[blockIndex] = true;
-                    }
-                    int next = node.getNext();
-                    fnodesTable[old] = null;
-                    old = (short) next;
-                }
+    @Override
+    public void setDeduplication(boolean enabled) {
+        writeLock.lock();
+        try {
+            deduplication = enabled;
+        } finally {
+            writeLock.unlock();
+        }
+    }
 
-                entry.setFirstBlock(newHead);
-                entry.setFilesize((short) contents.length);
-                saveMetaData();
-                System.out.println("Wrote " + contents.length + " Bytes to " + filename +
-                        " using " + requireBlocks + " blocks.");
-
-            } catch (Exception ex) {
-                // rollback
-                for (int i = 0; i < newNodesUsed.size(); i++) {
-                    int nodeIndex = newNodesUsed.get(i);
-                    int block     = newBlocksUsed.get(i);
-                    try {
-                        long off = offsetOfBlock(block);
-                        disk.seek(off);
-                        disk.write(new byte[BLOCK_SIZE]);
-                    } catch (Exception ignore) {}
-                    fnodesTable[nodeIndex] = null;
-                    if (block >= 0 && block < freeBlockList.length) freeBlockList[block] = true;
-                }
-                throw ex;
-            }
+    @Override
+    public void setCompression(boolean enabled) {
+        writeLock.lock();
+        try {
+            compression = enabled;
         } finally {
             writeLock.unlock();
         }
     }
 
-    public byte[] readFile(String filename) throws Exception {
-        int fileIndex = findFile(filename);
-        if (fileIndex == -1)
-            throw new Exception("ERROR: file " + filename + " does not exist");
+    @Override
+    public void setListener(FileSystemListener listener) {
+        this.listener = listener;
+    }
 
-        readLock.lock();
+    // ============================= MAINTENANCE ============================= //
+
+    /**
+     * Verifies chains against entry sizes on a pinned snapshot, so readers and
+     * writers keep running, then briefly takes the write lock to compare the
+     * free-block bitmap and reference counts with the working tables and to
+     * verify directory blocks.
+     */
+    @Override
+    public FsckReport check() {
+        long started = System.nanoTime();
+        java.util.List<String> problems = new java.util.ArrayList<>();
+        int files = 0, blocks = 0;
+
+        MetadataSnapshot snap = pinSnapshot();
         try {
-            FEntry entry = fentryTable[fileIndex];
-            if (entry.getFilesize() == 0 || entry.getFirstBlock() == -1)
-                return new byte[0];
+            boolean[] seenNode = new boolean[MAXBLOCKS];
+            for (int slot = 0; slot < MAXFILES; slot++) {
+                FEntry entry = snap.entry(slot);
+                if (entry == null) continue;
+                files++;
+                blocks += checkChain(entry, snap::node, seenNode, problems);
+            }
+        } finally {
+            unpinSnapshot(snap);
+        }
 
-            byte[] output = new byte[entry.getFilesize()];
-            int written = 0;
+        writeLock.lock();
+        try {
+            checkBitmap(problems);
+            checkDirectoryBlocks(problems);
+            checkOrphans(problems);
+        } finally {
+            writeLock.unlock();
+        }
+
+        metrics.increment("fsck.runs");
+        metrics.add("fsck.problems", problems.size());
+        metrics.add("fsck.nanos", System.nanoTime() - started);
+        return new FsckReport(files, blocks, problems);
+    }
 
-            short nodeIndex = entry.getFirstBlock();
-            while (nodeIndex != -1 && written < entry.getFilesize()) {
-                FNode node = fnodesTable[nodeIndex];
+    // @return number of blocks linked by the entry
+    private int checkChain(FEntry entry, IntFunction<FNode> nodes, boolean[] seenNode, java.util.List<String> problems) {
+        String name = entry.getFilename();
+        short nodeIndex = entry.getFirstBlock();
+        if (entry.getFilesize() == 0) {
+            if (nodeIndex != -1) problems.add(name + ": empty but links node " + nodeIndex);
+            return 0;
+        }
+        if (nodeIndex == -1) {
+            problems.add(name + ": " + entry.getFilesize() + " bytes but no blocks");
+            return 0;
+        }
+
+        int length = 0;
+        while (nodeIndex != -1) {
+            FNode node = nodeAt(nodes, nodeIndex);
+            if (node == null) {
+                problems.add(name + ": chain reaches missing node " + nodeIndex);
+                return length;
+            }
+            if (seenNode[nodeIndex]) {
+                problems.add(name + ": node " + nodeIndex + " is linked twice");
+                return length;
+            }
+            seenNode[nodeIndex] = true;
+            if (!isDataBlock(node.getBlockIndex())) {
+                problems.add(name + ": node " + nodeIndex + " points outside the data region");
+            } else if (!entry.isDirectory() && !blockChecksumOk(node.getBlockIndex())) {
+                metrics.increment("checksum.failures");
+                problems.add(name + ": block " + node.getBlockIndex() + " fails its checksum");
+            }
+            length++;
+            nodeIndex = (short) node.getNext();
+        }
+
+        // a compressed length is only known once its header has been read
+        int physical = entry.getPhysicalSize();
+        if (!(entry.isCompressed() && physical == 0) && length != blocksNeeded(physical)) {
+            problems.add(name + ": " + length + " blocks for " + physical + " bytes");
+        }
+        return length;
+    }
+
+    private boolean blockChecksumOk(int block) {
+        byte[] raw = new byte[BLOCK_SIZE];
+        try {
+            readFullyAt(raw, 0, BLOCK_SIZE, offsetOfBlock(block));
+        } catch (IOException e) {
+            return false;
+        }
+        return checksumMatches(block, raw, 0);
+    }
+
+    // Must hold writeLock. Directory leaves may be rewritten in place, so their
+    // checksums are only meaningful while no writer can be halfway through one.
+    private void checkDirectoryBlocks(java.util.List<String> problems) {
+        for (FEntry entry : fentryTable) {
+            if (entry == null || !entry.isDirectory()) continue;
+            int length = 0;
+            for (short i = entry.getFirstBlock(); i != -1 && length++ < MAXBLOCKS; ) {
+                FNode node = nodeAt(j -> fnodesTable[j], i);
                 if (node == null) break;
+                if (isDataBlock(node.getBlockIndex()) && !blockChecksumOk(node.getBlockIndex())) {
+                    metrics.increment("checksum.failures");
+                    problems.add(entry.getFilename() + ": block " + node.getBlockIndex() + " fails its checksum");
+                }
+                i = (short) node.getNext();
+            }
+        }
+    }
 
-                int block = node.getBlockIndex();
-                long off  = offsetOfBlock(block);
-                disk.seek(off);
+    // Must hold writeLock. Loading leaves an entry its parent does not list out of the tree.
+    private void checkOrphans(java.util.List<String> problems) {
+        for (int slot = 0; slot < MAXFILES; slot++) {
+            FEntry entry = fentryTable[slot];
+            if (entry != null && dirIndex.lookup(slotParent[slot], entry.getFilename()) != slot) {
+                problems.add(entry.getFilename() + ": orphaned, slot " + slot + " is not listed by its directory");
+            }
+        }
+    }
 
-                int toRead = Math.min(entry.getFilesize() - written, BLOCK_SIZE);
-                disk.readFully(output, written, toRead);
+    // Must hold writeLock. Blocks waiting for readers to finish are neither live nor leaked.
+    private void checkBitmap(java.util.List<String> problems) {
+        int[] refs = new int[MAXBLOCKS];
+        for (FNode fn : fnodesTable) {
+            if (fn != null && isDataBlock(fn.getBlockIndex())) refs[fn.getBlockIndex()]++;
+        }
+        java.util.Set<Integer> pending = new java.util.HashSet<>(unlinked);
+        for (MetadataSnapshot snap : retired) pending.addAll(snap.getGarbage());
 
-                written   += toRead;
-                nodeIndex = (short) node.getNext();
+        for (int block = firstDataBlockIndex; block < MAXBLOCKS; block++) {
+            if (refs[block] != blockRefs[block]) {
+                problems.add("block " + block + ": " + refs[block] + " links but refcount " + blockRefs[block]);
             }
+            if (refs[block] > 0 && freeBlockList[block]) {
+                problems.add("block " + block + ": in use but marked free");
+            } else if (refs[block] == 0 && !freeBlockList[block] && !pending.contains(block)) {
+                problems.add("block " + block + ": allocated but unreferenced");
+            }
+        }
+    }
+
+    /**
+     * Moves at most one fragmented file into a contiguous run of free blocks.
+     * Gives way to foreground writers instead of waiting for the lock.
+     * @return true if a file was moved
+     */
+    public boolean defragmentOnce() throws IOException {
+        if (!writeLock.tryLock()) {
+            metrics.increment("defrag.busySkips");
+            return false;
+        }
+        try {
+            if (!channel.isOpen()) return false;
+            metrics.increment("defrag.passes");
 
-            return output;
+            for (int slot = 0; slot < MAXFILES; slot++) {
+                FEntry entry = fentryTable[slot];
+                if (entry == null) continue;
+
+                java.util.List<FNode> chain = new java.util.ArrayList<>();
+                boolean contiguous = true, shared = false;
+                for (short i = entry.getFirstBlock(); i != -1 && chain.size() < MAXBLOCKS; ) {
+                    FNode node = nodeAt(j -> fnodesTable[j], i);
+                    if (node == null) break;
+                    if (!chain.isEmpty() && node.getBlockIndex() != chain.get(chain.size() - 1).getBlockIndex() + 1) {
+                        contiguous = false;
+                    }
+                    shared |= blockRefs[node.getBlockIndex()] > 1; // moving would undo dedup
+                    chain.add(node);
+                    i = (short) node.getNext();
+                }
+                if (chain.size() < 2 || contiguous || shared) continue;
+
+                int start = findFreeRun(chain.size());
+                if (start == -1) continue;
+
+                relocate(chain, start);
+                saveMetaData();
+                publish();
+                metrics.increment("defrag.filesMoved");
+                metrics.add("defrag.blocksMoved", chain.size());
+                System.out.println("Defragmented " + entry.getFilename() + " into blocks "
+                        + start + "-" + (start + chain.size() - 1));
+                return true;
+            }
+            return false;
         } finally {
-            readLock.unlock();
+            writeLock.unlock();
         }
     }
 
-    public void deleteFile(String fileName) throws Exception {
-        int fileIndex = findFile(fileName);
-        if (fileIndex == -1)
-            throw new Exception("ERROR: file " + fileName + " does not exist");
+    private int findFreeRun(int length) {
+        int run = 0;
+        for (int block = firstDataBlockIndex; block < MAXBLOCKS; block++) {
+            run = freeBlockList[block] ? run + 1 : 0;
+            if (run == length) return block - length + 1;
+        }
+        return -1;
+    }
 
-        writeLock.lock();
-        try {
-            FEntry entry = fentryTable[fileIndex];
+    // Must hold writeLock. Copies every block before relinking any node; the old
+    // blocks are reclaimed like any unlinked chain once readers release them.
+    private void relocate(java.util.List<FNode> chain, int start) throws IOException {
+        java.util.SortedMap<Integer, byte[]> copies = new TreeMap<>();
+        for (int i = 0; i < chain.size(); i++) {
+            int from = chain.get(i).getBlockIndex();
+            byte[] raw = new byte[BLOCK_SIZE];
+            readFullyAt(raw, 0, BLOCK_SIZE, offsetOfBlock(from));
+            if (!checksumMatches(from, raw, 0)) {
+                metrics.increment("checksum.failures");
+                throw new IOException("ERROR: checksum mismatch in block " + from + ", not moving it");
+            }
+            copies.put(start + i, raw);
+        }
+        writeBlocks(copies);
+        for (int i = 0; i < chain.size(); i++) {
+            FNode node = chain.get(i);
+            int from = node.getBlockIndex();
+            int to = start + i;
+
+            String digest = blockDigest == null ? null : blockDigest[from];
+            forgetDigest(from);
+            if (digest != null) {
+                blockDigest[to] = digest;
+                blockByDigest.put(digest, to);
+            }
 
-            short nodeIndex = entry.getFirstBlock();
-            while (nodeIndex != -1) {
-                FNode node = fnodesTable[nodeIndex];
-                if (node == null) break;
+            node.setBlockIndex(to);
+            freeBlockList[to] = false;
+            blockEpoch[to] = nextEpoch();
+            blockRefs[to] = 1;
+            blockRefs[from] = 0;
+            unlinked.add(from);
+        }
+    }
 
-                int block = node.getBlockIndex();
-                if (block >= 0 && block < freeBlockList.length) {
-                    long offset = offsetOfBlock(block);
-                    disk.seek(offset);
-                    disk.write(new byte[BLOCK_SIZE]); // zero out
-                    freeBlockList[block] = true;
+    /**
+     * Runs defragmentOnce every intervalMs on a background thread; 0 stops it.
+     * A running thread is asked to stop and joined, never interrupted, since an
+     * interrupt during its channel I/O would close the image for everyone.
+     */
+    @Override
+    public void setDefragmentation(long intervalMs) {
+        Thread previous = defragmenter;
+        Thread t = null;
+        if (intervalMs > 0) {
+            t = new Thread(() -> {
+                // runs until another thread (or none) becomes the defragmenter
+                while (defragmenter == Thread.currentThread()) {
+                    LockSupport.parkNanos(this, intervalMs * 1_000_000L);
+                    if (defragmenter != Thread.currentThread()) return;
+                    try {
+                        defragmentOnce();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
                 }
+            }, "defragmenter");
+            t.setDaemon(true);
+        }
+        defragmenter = t;
+        if (previous != null) {
+            LockSupport.unpark(previous);
+            joinUninterruptibly(previous);
+        }
+        if (t != null) t.start();
+    }
 
-                int next = node.getNext();
-                fnodesTable[nodeIndex] = null;
-                nodeIndex = (short) next;
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
 
-            fentryTable[fileIndex] = null;
-            saveMetaData();
-            System.out.println("Deleted file: " + fileName);
+    /** Writes the clean-shutdown checkpoint and closes the image. */
+    @Override
+    public void close() throws IOException {
+        setDefragmentation(0);
+        writeLock.lock();
+        try {
+            if (!channel.isOpen()) return;
+            reclaimRetired();
+            writeCleanCheckpoint();
+            disk.close();
+            System.out.println("Disk closed cleanly.");
         } finally {
             writeLock.unlock();
         }
     }
 
-    public String[] listFiles() {
-        readLock.lock();
-        try {
-            java.util.List<String> names = new java.util.ArrayList<>();
-            for (int i = 0; i < MAXFILES; i++) {
-                if (fentryTable[i] != null) {
-                    names.add(fentryTable[i].getFilename());
+    // Must hold writeLock.
+    private int countFragmented() {
+        int fragmented = 0;
+        for (FEntry entry : fentryTable) {
+            if (entry == null) continue;
+            int previous = -1;
+            for (short i = entry.getFirstBlock(); i != -1; ) {
+                FNode node = nodeAt(j -> fnodesTable[j], i);
+                if (node == null) break;
+                if (previous != -1 && node.getBlockIndex() != previous + 1) {
+                    fragmented++;
+                    break;
                 }
+                previous = node.getBlockIndex();
+                i = (short) node.getNext();
             }
-            return names.toArray(new String[0]);
+        }
+        return fragmented;
+    }
+
+    public FileSystemMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Counters plus current allocation gauges, e.g. for the STATS command. */
+    @Override
+    public Map<String, Number> getStats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        writeLock.lock();
+        try {
+            int logical = 0, physical = 0, free = 0;
+            for (int block = firstDataBlockIndex; block < MAXBLOCKS; block++) {
+                logical += blockRefs[block];
+                if (blockRefs[block] > 0) physical++;
+                if (freeBlockList[block]) free++;
+            }
+            stats.put("blocks.logical", logical);
+            stats.put("blocks.physical", physical);
+            stats.put("blocks.free", free);
+            stats.put("dedup.ratio", physical == 0 ? 1.0 : (double) logical / physical);
+            stats.put("files.fragmented", countFragmented());
         } finally {
-            readLock.unlock();
+            writeLock.unlock();
         }
+        stats.putAll(metrics.snapshot());
+        return stats;
     }
 }
@@ -0,0 +1,34 @@
+package ca.concordia.filesystem;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named, monotonically increasing counters. Cheap enough to bump on every
+ * operation from any thread.
+ */
+public class FileSystemMetrics {
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    public void add(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    public long get(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    public Map<String, Number> snapshot() {
+        Map<String, Number> out = new TreeMap<>();
+        counters.forEach((name, counter) -> out.put(name, counter.sum()));
+        return out;
+    }
+}
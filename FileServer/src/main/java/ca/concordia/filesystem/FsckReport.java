@@ -0,0 +1,14 @@
+package ca.concordia.filesystem;
+
+import java.util.List;
+
+/**
+ * Result of an online consistency check: how many entries and linked blocks
+ * were walked, and a human readable line for every inconsistency found.
+ */
+public record FsckReport(int files, int blocks, List<String> problems) {
+
+    public boolean isClean() {
+        return problems.isEmpty();
+    }
+}
@@ -0,0 +1,14 @@
+package ca.concordia.filesystem;
+
+import java.util.List;
+
+/**
+ * One page of a directory listing. nextCursor is null on the last page;
+ * otherwise pass it back to continue after the last returned name.
+ */
+public record ListPage(List<String> names, String nextCursor) {
+
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+}
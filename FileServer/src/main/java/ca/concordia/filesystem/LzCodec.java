@@ -0,0 +1,123 @@
+package ca.concordia.filesystem;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Small LZ77 codec in the LZ4 block style: each sequence is a token
+ * (literal length / match length nibbles), the literals, a 2-byte offset
+ * and optional length extension bytes. The stream ends after a literal run.
+ */
+final class LzCodec {
+
+    private static final int MIN_MATCH  = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS  = 12;
+
+    private LzCodec() {}
+
+    static byte[] compress(byte[] src) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(src.length / 2 + 16);
+        int[] table = new int[1 << HASH_BITS]; // position + 1, 0 = empty
+
+        int anchor = 0;
+        int ip = 0;
+        while (ip + MIN_MATCH <= src.length) {
+            int h = hash(read32(src, ip));
+            int ref = table[h] - 1;
+            table[h] = ip + 1;
+
+            if (ref >= 0 && ip - ref <= MAX_OFFSET && read32(src, ref) == read32(src, ip)) {
+                int matchLen = MIN_MATCH;
+                while (ip + matchLen < src.length && src[ref + matchLen] == src[ip + matchLen]) {
+                    matchLen++;
+                }
+                writeSequence(out, src, anchor, ip - anchor, ip - ref, matchLen);
+                ip += matchLen;
+                anchor = ip;
+            } else {
+                ip++;
+            }
+        }
+        writeSequence(out, src, anchor, src.length - anchor, 0, 0);
+        return out.toByteArray();
+    }
+
+    static byte[] decompress(byte[] src, int from, int length, int logicalSize) {
+        byte[] dst = new byte[logicalSize];
+        int ip = from;
+        int end = from + length;
+        int op = 0;
+
+        while (ip < end) {
+            int token = src[ip++] & 0xFF;
+
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip >= end) break; // last sequence carries literals only
+
+            int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+            ip += 2;
+            int matchLen = token & 0x0F;
+            if (matchLen == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    matchLen += b;
+                } while (b == 255);
+            }
+            matchLen += MIN_MATCH;
+
+            // byte by byte: the match may overlap the bytes it produces
+            int ref = op - offset;
+            for (int i = 0; i < matchLen; i++) {
+                dst[op++] = dst[ref++];
+            }
+        }
+
+        if (op != logicalSize) {
+            throw new IllegalStateException("Corrupt compressed data: expected " + logicalSize + " bytes, got " + op);
+        }
+        return dst;
+    }
+
+    // ============================= PRIVATE HELPERS ============================= //
+
+    private static void writeSequence(ByteArrayOutputStream out, byte[] src, int litFrom, int literals,
+                                      int offset, int matchLen) {
+        int litNibble   = Math.min(literals, 15);
+        int matchNibble = matchLen == 0 ? 0 : Math.min(matchLen - MIN_MATCH, 15);
+        out.write((litNibble << 4) | matchNibble);
+        if (litNibble == 15) writeLength(out, literals - 15);
+        out.write(src, litFrom, literals);
+
+        if (matchLen == 0) return;
+        out.write(offset & 0xFF);
+        out.write((offset >>> 8) & 0xFF);
+        if (matchNibble == 15) writeLength(out, matchLen - MIN_MATCH - 15);
+    }
+
+    private static void writeLength(ByteArrayOutputStream out, int remaining) {
+        while (remaining >= 255) {
+            out.write(255);
+            remaining -= 255;
+        }
+        out.write(remaining);
+    }
+
+    private static int read32(byte[] b, int i) {
+        return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8) | ((b[i + 2] & 0xFF) << 16) | ((b[i + 3] & 0xFF) << 24);
+    }
+
+    private static int hash(int v) {
+        return (v * -1640531535) >>> (32 - HASH_BITS);
+    }
+}
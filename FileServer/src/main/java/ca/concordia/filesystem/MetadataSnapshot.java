@@ -0,0 +1,87 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.FEntry;
+import ca.concordia.filesystem.datastructures.FNode;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable copy of the FEntry / FNode tables published after every mutation.
+ * Readers pin a snapshot instead of taking the read lock; blocks that the next
+ * mutation unlinks are only reclaimed once no pinned snapshot can still see them.
+ */
+final class MetadataSnapshot {
+
+    private final long epoch;
+    private final FEntry[] entries;
+    private final FNode[] nodes;
+    private final DirectoryIndex dirs; // immutable, shared with the writer
+
+    private final AtomicInteger pins = new AtomicInteger();
+    private volatile boolean retired = false;
+    private List<Integer> garbage = List.of(); // blocks unlinked by the next mutation
+
+    MetadataSnapshot(long epoch, FEntry[] fentryTable, FNode[] fnodesTable, DirectoryIndex dirs) {
+        this.epoch = epoch;
+        this.dirs = dirs;
+        entries = new FEntry[fentryTable.length];
+        for (int i = 0; i < fentryTable.length; i++) {
+            if (fentryTable[i] != null) entries[i] = new FEntry(fentryTable[i]);
+        }
+        nodes = new FNode[fnodesTable.length];
+        for (int i = 0; i < fnodesTable.length; i++) {
+            if (fnodesTable[i] != null) nodes[i] = new FNode(fnodesTable[i]);
+        }
+    }
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    FEntry entry(int i) {
+        return entries[i];
+    }
+
+    FNode node(int i) {
+        if (i < 0 || i >= nodes.length) return null;
+        return nodes[i];
+    }
+
+    DirectoryIndex dirs() {
+        return dirs;
+    }
+
+    FEntry findFile(String path) {
+        int slot = dirs.resolve(path);
+        return slot < 0 ? null : entries[slot];
+    }
+
+    // ============================= PINNING ============================= //
+
+    void pin() {
+        pins.incrementAndGet();
+    }
+
+    /** @return true if this was the last pin of a retired snapshot */
+    boolean unpin() {
+        return pins.decrementAndGet() == 0 && retired;
+    }
+
+    boolean isPinned() {
+        return pins.get() > 0;
+    }
+
+    void retire(List<Integer> unlinkedBlocks) {
+        garbage = unlinkedBlocks;
+        retired = true;
+    }
+
+    List<Integer> getGarbage() {
+        return garbage;
+    }
+
+    void setGarbage(List<Integer> stillReferenced) {
+        garbage = stillReferenced;
+    }
+}
@@ -0,0 +1,21 @@
+package ca.concordia.filesystem;
+
+/**
+ * A conditional write found the file at a different etag than the caller
+ * expected. Not an error as such: the client re-reads and retries.
+ */
+public class PreconditionFailedException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String currentEtag;
+
+    public PreconditionFailedException(String currentEtag) {
+        super("PRECONDITION_FAILED " + currentEtag);
+        this.currentEtag = currentEtag;
+    }
+
+    public String getCurrentEtag() {
+        return currentEtag;
+    }
+}
@@ -0,0 +1,199 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Partitions the filename space by hash across independent FileSystemManagers,
+ * each with its own disk image, locks and block allocator. Operations on
+ * different shards never contend with each other. Paths are routed by their
+ * top-level component so a directory and its contents share a shard.
+ */
+public class ShardedFileSystem implements FileSystem {
+
+    private final FileSystemManager[] shards;
+
+    public ShardedFileSystem(String fileSystemName, int totalSizePerShard, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1.");
+        }
+        shards = new FileSystemManager[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new FileSystemManager(shardImageName(fileSystemName, i), totalSizePerShard);
+        }
+    }
+
+    public static String shardImageName(String fileSystemName, int shard) {
+        return fileSystemName + ".shard" + shard;
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    public FileSystemManager shardFor(String fileName) {
+        if (fileName == null) return shards[0]; // let the shard report the bad name
+        String[] parts = DirectoryIndex.split(fileName);
+        String top = parts.length == 0 ? "" : parts[0];
+        return shards[Math.floorMod(top.hashCode(), shards.length)];
+    }
+
+    private boolean isRoot(String path) {
+        return path == null || DirectoryIndex.split(path).length == 0;
+    }
+
+    @Override
+    public void createFile(String fileName) throws Exception {
+        shardFor(fileName).createFile(fileName);
+    }
+
+    @Override
+    public void createDirectory(String path) throws Exception {
+        shardFor(path).createDirectory(path);
+    }
+
+    @Override
+    public void writeFile(String fileName, byte[] contents) throws Exception {
+        shardFor(fileName).writeFile(fileName, contents);
+    }
+
+    @Override
+    public byte[] readFile(String fileName) throws Exception {
+        return shardFor(fileName).readFile(fileName);
+    }
+
+    @Override
+    public void deleteFile(String fileName) throws Exception {
+        shardFor(fileName).deleteFile(fileName);
+    }
+
+    @Override
+    public FileStat stat(String path) throws Exception {
+        return shardFor(path).stat(path);
+    }
+
+    @Override
+    public VersionedContents readFileIfChanged(String fileName, String etag) throws Exception {
+        return shardFor(fileName).readFileIfChanged(fileName, etag);
+    }
+
+    @Override
+    public String writeFileIf(String fileName, String etag, byte[] contents) throws Exception {
+        return shardFor(fileName).writeFileIf(fileName, etag, contents);
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return shardFor(path).exists(path);
+    }
+
+    @Override
+    public String[] listFiles() {
+        return listFiles("");
+    }
+
+    @Override
+    public String[] listFiles(String directory) {
+        if (!isRoot(directory)) return shardFor(directory).listFiles(directory);
+
+        List<String> names = new ArrayList<>();
+        for (FileSystemManager shard : shards) {
+            names.addAll(List.of(shard.listFiles()));
+        }
+        names.sort(null);
+        return names.toArray(new String[0]);
+    }
+
+    // A root-level prefix can match names on every shard, so each shard returns
+    // its own first page after the cursor and the pages are merged in order.
+    @Override
+    public ListPage listPage(String prefix, int limit, String cursor) {
+        if (prefix != null && prefix.contains(DirectoryIndex.SEPARATOR)) {
+            return shardFor(prefix).listPage(prefix, limit, cursor);
+        }
+
+        List<String> merged = new ArrayList<>();
+        boolean more = false;
+        for (FileSystemManager shard : shards) {
+            ListPage page = shard.listPage(prefix, limit, cursor);
+            merged.addAll(page.names());
+            more |= page.hasMore();
+        }
+        merged.sort(Comparator.comparing(ShardedFileSystem::stripSlash));
+        if (merged.size() > limit) {
+            merged = new ArrayList<>(merged.subList(0, limit));
+            more = true;
+        }
+        String next = more && !merged.isEmpty() ? stripSlash(merged.get(merged.size() - 1)) : null;
+        return new ListPage(merged, next);
+    }
+
+    private static String stripSlash(String name) {
+        return name.endsWith(DirectoryIndex.SEPARATOR) ? name.substring(0, name.length() - 1) : name;
+    }
+
+    // Counters are summed; the dedup ratio is recomputed from the summed block counts.
+    @Override
+    public Map<String, Number> getStats() {
+        Map<String, Number> merged = new LinkedHashMap<>();
+        for (FileSystemManager shard : shards) {
+            shard.getStats().forEach((name, value) ->
+                    merged.merge(name, value.longValue(), (a, b) -> a.longValue() + b.longValue()));
+        }
+        long logical  = merged.getOrDefault("blocks.logical", 0).longValue();
+        long physical = merged.getOrDefault("blocks.physical", 0).longValue();
+        merged.put("dedup.ratio", physical == 0 ? 1.0 : (double) logical / physical);
+        merged.put("shards", shards.length);
+        return merged;
+    }
+
+    @Override
+    public void setDeduplication(boolean enabled) {
+        for (FileSystemManager shard : shards) shard.setDeduplication(enabled);
+    }
+
+    @Override
+    public void setCompression(boolean enabled) {
+        for (FileSystemManager shard : shards) shard.setCompression(enabled);
+    }
+
+    @Override
+    public void setListener(FileSystemListener listener) {
+        for (FileSystemManager shard : shards) shard.setListener(listener);
+    }
+
+    @Override
+    public FsckReport check() {
+        int files = 0, blocks = 0;
+        List<String> problems = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            FsckReport report = shards[i].check();
+            files  += report.files();
+            blocks += report.blocks();
+            for (String problem : report.problems()) problems.add("shard" + i + ": " + problem);
+        }
+        return new FsckReport(files, blocks, problems);
+    }
+
+    @Override
+    public void setDefragmentation(long intervalMs) {
+        for (FileSystemManager shard : shards) shard.setDefragmentation(intervalMs);
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException first = null;
+        for (FileSystemManager shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (first == null) first = e;
+            }
+        }
+        if (first != null) throw first;
+    }
+}
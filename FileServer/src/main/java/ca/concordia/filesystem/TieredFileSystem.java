@@ -0,0 +1,278 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the contents of small, frequently read files in memory so their
+ * READs never touch the disk image. The hot tier is bounded in bytes; a file
+ * is promoted once it has been read often enough, and only displaces files
+ * that are read less often than it. Access counts are halved periodically,
+ * and files whose count reaches zero are demoted.
+ *
+ * Writes go through to the wrapped file system before the hot copy is
+ * replaced, so the image stays authoritative (etags, replication, restarts)
+ * and demoting a file never costs a write.
+ *
+ * A hit takes no lock: both maps are concurrent and hot copies are never
+ * modified in place. Only changes to the set of hot files are serialized.
+ */
+public class TieredFileSystem implements FileSystem {
+
+    private static final int ADMIT_AFTER_READS = 2;
+    private static final int AGING_PERIOD = 1024; // accesses between halvings
+
+    private final FileSystem delegate;
+    private final long maxHotBytes;
+    private final int maxHotFileBytes;
+
+    private final ConcurrentHashMap<String, byte[]> hot = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> frequency = new ConcurrentHashMap<>();
+    private final AtomicInteger accesses = new AtomicInteger();
+    private final AtomicLong generation = new AtomicLong(); // bumped around every mutation, so a read racing one is not promoted
+
+    private final ReentrantLock tierLock = new ReentrantLock();   // promotions and demotions
+    private long hotBytes = 0;                                     // guarded by tierLock
+    private final ReentrantLock writeMutex = new ReentrantLock(); // hot copies change in disk order
+    private final FileSystemMetrics metrics = new FileSystemMetrics();
+
+    public TieredFileSystem(FileSystem delegate, long maxHotBytes, int maxHotFileBytes) {
+        this.delegate = delegate;
+        this.maxHotBytes = maxHotBytes;
+        this.maxHotFileBytes = maxHotFileBytes;
+    }
+
+    // ============================= TIERED OPERATIONS ============================= //
+
+    @Override
+    public byte[] readFile(String fileName) throws Exception {
+        String key = keyOf(fileName);
+        touch(key);
+        long seen = generation.get();
+        byte[] cached = hot.get(key);
+        if (cached != null) {
+            metrics.increment("tier.hits");
+            return cached.clone();
+        }
+        metrics.increment("tier.misses");
+
+        byte[] data = delegate.readFile(fileName);
+        if (frequency.getOrDefault(key, 0) >= ADMIT_AFTER_READS) {
+            tierLock.lock();
+            try {
+                if (seen == generation.get()) promote(key, data);
+            } finally {
+                tierLock.unlock();
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public void writeFile(String fileName, byte[] contents) throws Exception {
+        mutate(fileName, contents.clone(), () -> delegate.writeFile(fileName, contents));
+    }
+
+    @Override
+    public String writeFileIf(String fileName, String etag, byte[] contents) throws Exception {
+        String[] next = new String[1];
+        mutate(fileName, contents.clone(), () -> next[0] = delegate.writeFileIf(fileName, etag, contents));
+        return next[0];
+    }
+
+    @Override
+    public void deleteFile(String fileName) throws Exception {
+        mutate(fileName, null, () -> delegate.deleteFile(fileName));
+    }
+
+    // ============================= PASS-THROUGH ============================= //
+
+    @Override
+    public void createFile(String fileName) throws Exception {
+        delegate.createFile(fileName);
+    }
+
+    @Override
+    public void createDirectory(String path) throws Exception {
+        delegate.createDirectory(path);
+    }
+
+    @Override
+    public FileStat stat(String path) throws Exception {
+        return delegate.stat(path);
+    }
+
+    @Override
+    public VersionedContents readFileIfChanged(String fileName, String etag) throws Exception {
+        return delegate.readFileIfChanged(fileName, etag);
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return delegate.exists(path);
+    }
+
+    @Override
+    public String[] listFiles() {
+        return delegate.listFiles();
+    }
+
+    @Override
+    public String[] listFiles(String directory) {
+        return delegate.listFiles(directory);
+    }
+
+    @Override
+    public ListPage listPage(String prefix, int limit, String cursor) {
+        return delegate.listPage(prefix, limit, cursor);
+    }
+
+    @Override
+    public Map<String, Number> getStats() {
+        Map<String, Number> stats = new LinkedHashMap<>(delegate.getStats());
+        stats.putAll(metrics.snapshot());
+        tierLock.lock();
+        try {
+            stats.put("tier.hotFiles", hot.size());
+            stats.put("tier.hotBytes", hotBytes);
+        } finally {
+            tierLock.unlock();
+        }
+        return stats;
+    }
+
+    @Override
+    public void setDeduplication(boolean enabled) {
+        delegate.setDeduplication(enabled);
+    }
+
+    @Override
+    public void setCompression(boolean enabled) {
+        delegate.setCompression(enabled);
+    }
+
+    @Override
+    public void setListener(FileSystemListener listener) {
+        delegate.setListener(listener);
+    }
+
+    @Override
+    public FsckReport check() {
+        return delegate.check();
+    }
+
+    @Override
+    public void setDefragmentation(long intervalMs) {
+        delegate.setDefragmentation(intervalMs);
+    }
+
+    @Override
+    public void close() throws IOException {
+        tierLock.lock();
+        try {
+            hot.clear();
+            hotBytes = 0;
+        } finally {
+            tierLock.unlock();
+        }
+        delegate.close();
+    }
+
+    // ============================= PRIVATE HELPERS ============================= //
+
+    private interface Mutation {
+        void run() throws Exception;
+    }
+
+    // contents is the file's new hot copy, or null when the file goes away
+    private void mutate(String fileName, byte[] contents, Mutation write) throws Exception {
+        String key = keyOf(fileName);
+        writeMutex.lock();
+        try {
+            generation.incrementAndGet();
+            boolean written = false;
+            try {
+                write.run();
+                written = true;
+            } finally {
+                tierLock.lock();
+                try {
+                    generation.incrementAndGet();
+                    if (hot.containsKey(key)) {
+                        demote(key);
+                        if (written && contents != null) promote(key, contents);
+                    }
+                    if (written && contents == null) frequency.remove(key);
+                } finally {
+                    tierLock.unlock();
+                }
+            }
+        } finally {
+            writeMutex.unlock();
+        }
+    }
+
+    // Counts an access. Every AGING_PERIOD accesses, the reader that crosses
+    // the mark halves every count; each halving is atomic per key, so other
+    // readers keep counting meanwhile.
+    private void touch(String key) {
+        frequency.merge(key, 1, Integer::sum);
+        if (accesses.incrementAndGet() % AGING_PERIOD != 0) return;
+
+        for (String name : frequency.keySet()) {
+            Integer left = frequency.computeIfPresent(name, (k, f) -> f / 2 == 0 ? null : f / 2);
+            if (left == null && hot.containsKey(name)) { // gone cold
+                tierLock.lock();
+                try {
+                    if (!frequency.containsKey(name)) demote(name);
+                } finally {
+                    tierLock.unlock();
+                }
+            }
+        }
+        metrics.increment("tier.agings");
+    }
+
+    // Must hold tierLock. Makes room by demoting only files read less often than key.
+    private void promote(String key, byte[] data) {
+        if (data.length > maxHotFileBytes || data.length > maxHotBytes) return;
+        int candidate = frequency.getOrDefault(key, 0);
+        while (hotBytes + data.length > maxHotBytes) {
+            String victim = null;
+            int victimFrequency = Integer.MAX_VALUE;
+            for (String name : hot.keySet()) {
+                int f = frequency.getOrDefault(name, 0);
+                if (f < victimFrequency) {
+                    victim = name;
+                    victimFrequency = f;
+                }
+            }
+            if (victim == null || victimFrequency >= candidate) {
+                metrics.increment("tier.rejected");
+                return;
+            }
+            demote(victim);
+        }
+        hot.put(key, data.clone());
+        hotBytes += data.length;
+        metrics.increment("tier.promotions");
+    }
+
+    // Must hold tierLock. The image already has the contents, so this only frees memory.
+    private void demote(String key) {
+        byte[] data = hot.remove(key);
+        if (data == null) return;
+        hotBytes -= data.length;
+        metrics.increment("tier.demotions");
+    }
+
+    // "a//b", "/a/b" and "a/b" are the same file
+    private static String keyOf(String path) {
+        return DirectoryIndex.normalize(path);
+    }
+}
@@ -0,0 +1,4 @@
+package ca.concordia.filesystem;
+
+/** File contents together with the etag of the version they were read from. */
+public record VersionedContents(byte[] data, String etag) {}
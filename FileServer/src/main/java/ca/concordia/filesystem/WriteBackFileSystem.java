@@ -0,0 +1,305 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Buffers WRITEs in memory and hands them to the wrapped file system later.
+ * A WRITE replaces the whole file, so consecutive writes to the same file
+ * coalesce into one: only the latest contents are ever flushed.
+ *
+ * A file is flushed once it has been dirty for maxDelayMs, when the buffer
+ * grows past maxBufferedBytes, before any operation that observes it (READ,
+ * STAT, conditional reads and writes) and on close(). A flush that fails,
+ * e.g. because the image ran out of blocks, keeps the contents buffered and
+ * is retried; the failure is reported to the next operation that observes
+ * the file, since the WRITE itself has already been answered. Contents
+ * whose file has meanwhile been deleted are dropped instead.
+ */
+public class WriteBackFileSystem implements FileSystem {
+
+    private static final int LOCK_STRIPES = 64;
+
+    private record Dirty(byte[] contents, long since) {}
+
+    private final FileSystem delegate;
+    private final long maxDelayMs;
+    private final long maxBufferedBytes;
+
+    private final ConcurrentHashMap<String, Dirty> dirty = new ConcurrentHashMap<>(); // by normalized path
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES]; // keep flushes of one file in order
+    private final FileSystemMetrics metrics = new FileSystemMetrics();
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    public WriteBackFileSystem(FileSystem delegate, long maxDelayMs, long maxBufferedBytes) {
+        this.delegate = delegate;
+        this.maxDelayMs = maxDelayMs;
+        this.maxBufferedBytes = maxBufferedBytes;
+        for (int i = 0; i < LOCK_STRIPES; i++) stripes[i] = new ReentrantLock();
+        flusher = new Thread(this::flushLoop, "write-back-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // ============================= BUFFERED OPERATIONS ============================= //
+
+    @Override
+    public void writeFile(String fileName, byte[] contents) throws Exception {
+        if (contents.length > FileSystemManager.MAX_FILE_SIZE)
+            throw new Exception("ERROR: file too large");
+
+        byte[] copy = contents.clone();
+        Dirty[] replaced = new Dirty[1];
+        String key = keyOf(fileName);
+        ReentrantLock lock = lockFor(key);
+        lock.lock(); // a DELETE must not slip in between the check and the merge
+        try {
+            // report what can be known now instead of failing silently at flush time
+            if (delegate.stat(fileName).directory())
+                throw new Exception("ERROR: " + fileName + " is a directory");
+            // keep the older timestamp so a file rewritten constantly still flushes on time
+            dirty.merge(key, new Dirty(copy, System.nanoTime()), (old, latest) -> {
+                replaced[0] = old;
+                return new Dirty(latest.contents(), old.since());
+            });
+        } finally {
+            lock.unlock();
+        }
+        if (replaced[0] != null) {
+            bufferedBytes.addAndGet(-replaced[0].contents().length);
+            metrics.increment("writeback.coalesced");
+        }
+        metrics.increment("writeback.buffered");
+
+        long buffered = bufferedBytes.addAndGet(copy.length);
+        if (buffered > 2 * maxBufferedBytes) {
+            flushAll(); // flusher is falling behind, push back on the writer
+        } else if (buffered > maxBufferedBytes) {
+            LockSupport.unpark(flusher);
+        }
+    }
+
+    @Override
+    public byte[] readFile(String fileName) throws Exception {
+        flush(fileName);
+        return delegate.readFile(fileName);
+    }
+
+    @Override
+    public FileStat stat(String path) throws Exception {
+        flush(path);
+        return delegate.stat(path);
+    }
+
+    @Override
+    public VersionedContents readFileIfChanged(String fileName, String etag) throws Exception {
+        flush(fileName);
+        return delegate.readFileIfChanged(fileName, etag);
+    }
+
+    @Override
+    public String writeFileIf(String fileName, String etag, byte[] contents) throws Exception {
+        flush(fileName);
+        return delegate.writeFileIf(fileName, etag, contents);
+    }
+
+    @Override
+    public void deleteFile(String fileName) throws Exception {
+        String key = keyOf(fileName);
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            Dirty pending = dirty.remove(key);
+            if (pending != null) {
+                bufferedBytes.addAndGet(-pending.contents().length);
+                metrics.increment("writeback.discarded");
+            }
+            delegate.deleteFile(fileName);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes one file's buffered contents, if any, through to the wrapped file system.
+     * @throws Exception if they could not be written; they stay buffered and are retried
+     */
+    public void flush(String fileName) throws Exception {
+        String key = keyOf(fileName);
+        if (!dirty.containsKey(key)) return;
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            Dirty pending = dirty.get(key);
+            if (pending == null) return;
+            try {
+                delegate.writeFile(key, pending.contents());
+            } catch (Exception e) {
+                if (!delegate.exists(key)) {
+                    // deleted behind this buffer's back: nothing left to write to
+                    if (dirty.remove(key, pending)) bufferedBytes.addAndGet(-pending.contents().length);
+                    metrics.increment("writeback.discarded");
+                    return;
+                }
+                metrics.increment("writeback.flushFailures");
+                // retried after another maxDelayMs, unless a newer WRITE replaced it meanwhile
+                dirty.replace(key, pending, new Dirty(pending.contents(), System.nanoTime()));
+                throw new Exception("ERROR: buffered write to " + key + " could not be flushed: " + e.getMessage(), e);
+            }
+            // a WRITE that arrived during the flush stays buffered
+            if (dirty.remove(key, pending)) bufferedBytes.addAndGet(-pending.contents().length);
+            metrics.increment("writeback.flushes");
+            metrics.add("writeback.flushedBytes", pending.contents().length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Flushes every buffered file; failures are logged and stay buffered. */
+    public void flushAll() {
+        for (String key : new ArrayList<>(dirty.keySet())) flushQuietly(key);
+    }
+
+    // ============================= PASS-THROUGH ============================= //
+
+    @Override
+    public void createFile(String fileName) throws Exception {
+        delegate.createFile(fileName);
+    }
+
+    @Override
+    public void createDirectory(String path) throws Exception {
+        delegate.createDirectory(path);
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return delegate.exists(path);
+    }
+
+    @Override
+    public String[] listFiles() {
+        return delegate.listFiles();
+    }
+
+    @Override
+    public String[] listFiles(String directory) {
+        return delegate.listFiles(directory);
+    }
+
+    @Override
+    public ListPage listPage(String prefix, int limit, String cursor) {
+        return delegate.listPage(prefix, limit, cursor);
+    }
+
+    @Override
+    public Map<String, Number> getStats() {
+        Map<String, Number> stats = new LinkedHashMap<>(delegate.getStats());
+        stats.putAll(metrics.snapshot());
+        stats.put("writeback.dirtyFiles", dirty.size());
+        stats.put("writeback.dirtyBytes", bufferedBytes.get());
+        return stats;
+    }
+
+    @Override
+    public void setDeduplication(boolean enabled) {
+        delegate.setDeduplication(enabled);
+    }
+
+    @Override
+    public void setCompression(boolean enabled) {
+        delegate.setCompression(enabled);
+    }
+
+    @Override
+    public void setListener(FileSystemListener listener) {
+        delegate.setListener(listener); // replicas see a write when it is flushed
+    }
+
+    @Override
+    public FsckReport check() {
+        flushAll();
+        return delegate.check();
+    }
+
+    @Override
+    public void setDefragmentation(long intervalMs) {
+        delegate.setDefragmentation(intervalMs);
+    }
+
+    /**
+     * Stops the flusher, writes out everything still buffered and closes the
+     * wrapped file system. The flusher is joined rather than interrupted, so
+     * it never abandons a write halfway.
+     * @throws IOException after closing, if some contents could not be flushed
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(flusher);
+        boolean interrupted = false;
+        while (flusher.isAlive()) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                interrupted = true; // restored once the image is closed
+            }
+        }
+        try {
+            flushAll();
+            delegate.close();
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        if (!dirty.isEmpty()) {
+            metrics.add("writeback.lostFiles", dirty.size());
+            throw new IOException("ERROR: could not flush " + String.join(", ", dirty.keySet()));
+        }
+    }
+
+    // ============================= PRIVATE HELPERS ============================= //
+
+    private void flushLoop() {
+        long tickNanos = Math.max(1, maxDelayMs / 2) * 1_000_000L;
+        while (running) {
+            LockSupport.parkNanos(this, tickNanos); // unparked when the buffer overflows or on close
+            if (!running) return;
+            if (bufferedBytes.get() > maxBufferedBytes) {
+                flushAll();
+                continue;
+            }
+            long cutoff = System.nanoTime() - maxDelayMs * 1_000_000L;
+            List<String> due = new ArrayList<>();
+            dirty.forEach((key, d) -> {
+                if (d.since() - cutoff <= 0) due.add(key);
+            });
+            for (String key : due) flushQuietly(key);
+        }
+    }
+
+    private void flushQuietly(String key) {
+        try {
+            flush(key);
+        } catch (Exception e) {
+            System.out.println("Write-back flush of " + key + " failed: " + e.getMessage());
+        }
+    }
+
+    private ReentrantLock lockFor(String key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    // "a", "/a" and "a/" are the same file
+    private static String keyOf(String path) {
+        return DirectoryIndex.normalize(path);
+    }
+}
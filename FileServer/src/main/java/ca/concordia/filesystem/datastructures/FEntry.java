@@ -6,6 +6,10 @@ public class FEntry {
     private String filename;
     private short filesize;
     private short firstBlock; // Pointers to data blocks
+    private boolean compressed;
+    private short physicalSize; // bytes on the chain when compressed
+    private boolean directory;  // chain holds the directory's child records
+    private long version;       // bumped on every change
 
     public FEntry(String filename, short filesize, short firstblock) throws IllegalArgumentException{
         //Check filename is max 11 bytes long
@@ -17,6 +21,16 @@ public class FEntry {
         this.firstBlock = firstblock;
     }
 
+    public FEntry(FEntry other) {
+        this.filename = other.filename;
+        this.filesize = other.filesize;
+        this.firstBlock = other.firstBlock;
+        this.compressed = other.compressed;
+        this.physicalSize = other.physicalSize;
+        this.directory = other.directory;
+        this.version = other.version;
+    }
+
     // Getters and Setters
     public String getFilename() {
         return filename;
@@ -47,4 +61,37 @@ public class FEntry {
     public void setFirstBlock(short firstBlock) {
         this.firstBlock = firstBlock;
     }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    // Logical size stays in filesize; physical size is what the block chain holds.
+    public short getPhysicalSize() {
+        return compressed ? physicalSize : filesize;
+    }
+
+    public void setCompressed(boolean compressed, short physicalSize) {
+        if (physicalSize < 0) {
+            throw new IllegalArgumentException("Physical size cannot be negative.");
+        }
+        this.compressed = compressed;
+        this.physicalSize = physicalSize;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(boolean directory) {
+        this.directory = directory;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
 }
@@ -10,10 +10,19 @@ public class FNode {
         this.next = -1;
     }
 
+    public FNode(FNode other) {
+        this.blockIndex = other.blockIndex;
+        this.next = other.next;
+    }
+
     public int getBlockIndex() {
         return blockIndex;
     }
 
+    public void setBlockIndex(int blockIndex) {
+        this.blockIndex = blockIndex;
+    }
+
     public int getNext() {
         return next;
     }
@@ -0,0 +1,162 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystemMetrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Decides up front whether a request may run: a token bucket per client
+ * address, optional per-client buckets for individual commands, and a cap
+ * on operations in flight. Connections and replication streams are capped
+ * separately, since each holds a thread for as long as it stays open.
+ * Every check is non-blocking so an overloaded server answers "ERROR: BUSY"
+ * immediately instead of queueing work.
+ */
+public class AdmissionControl {
+
+    // Least recently used buckets are forgotten beyond this; a forgotten
+    // client simply starts again with a full burst.
+    private static final int MAX_TRACKED_BUCKETS = 4096;
+    private static final int DEFAULT_MAX_CONNECTIONS = 1024;
+    private static final int DEFAULT_MAX_STREAMS = 4;
+
+    private record Limit(double ratePerSecond, double burst) {}
+
+    private final Semaphore inFlight;
+    private volatile Semaphore connections = new Semaphore(DEFAULT_MAX_CONNECTIONS);
+    private volatile Semaphore streams = new Semaphore(DEFAULT_MAX_STREAMS);
+    private final FileSystemMetrics metrics = new FileSystemMetrics();
+    private final Map<String, Limit> commandLimits = new ConcurrentHashMap<>();
+    private volatile Limit clientLimit; // null: no per-client limit
+
+    // access order, so the eldest entry is the least recently used; guarded by itself
+    private final LinkedHashMap<String, TokenBucket> buckets = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+            return size() > MAX_TRACKED_BUCKETS;
+        }
+    };
+
+    public AdmissionControl(int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("At least one concurrent operation must be allowed.");
+        }
+        inFlight = new Semaphore(maxConcurrent);
+    }
+
+    public static AdmissionControl unlimited() {
+        AdmissionControl admission = new AdmissionControl(Integer.MAX_VALUE);
+        admission.limitConnections(Integer.MAX_VALUE);
+        return admission;
+    }
+
+    /** Every client address may issue ratePerSecond requests, bursting up to burst. */
+    public void limitClients(double ratePerSecond, int burst) {
+        clientLimit = new Limit(ratePerSecond, burst);
+    }
+
+    /** Additional per-client limit for one command, e.g. WRITE. */
+    public void limitCommand(String command, double ratePerSecond, int burst) {
+        commandLimits.put(command.toUpperCase(), new Limit(ratePerSecond, burst));
+    }
+
+    /** Open connections, idle ones included; set before the server starts. */
+    public void limitConnections(int max) {
+        connections = new Semaphore(max);
+    }
+
+    /** Concurrent REPLICATE streams; set before the server starts. */
+    public void limitStreams(int max) {
+        streams = new Semaphore(max);
+    }
+
+    /**
+     * Nothing is consumed unless every check passes.
+     * @return true if the request may run; the caller must then call release()
+     */
+    public boolean tryAdmit(String client, String command) {
+        if (!takeRate(client, command)) return false;
+        if (!inFlight.tryAcquire()) {
+            refundRate(client, command);
+            metrics.increment("admission.busy");
+            return false;
+        }
+        metrics.increment("admission.admitted");
+        return true;
+    }
+
+    public void release() {
+        inFlight.release();
+    }
+
+    /**
+     * A REPLICATE stream holds its slot until the replica disconnects, so it
+     * counts against its own small cap rather than against in-flight requests.
+     * @return true if the stream may start; the caller must then call releaseStream()
+     */
+    public boolean tryAdmitStream(String client) {
+        if (!takeRate(client, "REPLICATE")) return false;
+        if (!streams.tryAcquire()) {
+            refundRate(client, "REPLICATE");
+            metrics.increment("admission.streamsBusy");
+            return false;
+        }
+        metrics.increment("admission.streams");
+        return true;
+    }
+
+    public void releaseStream() {
+        streams.release();
+    }
+
+    /** @return true if a new connection may be served; the caller must then call connectionClosed() */
+    public boolean tryOpenConnection() {
+        if (connections.tryAcquire()) return true;
+        metrics.increment("admission.connectionsRejected");
+        return false;
+    }
+
+    public void connectionClosed() {
+        connections.release();
+    }
+
+    public Map<String, Number> getStats() {
+        return metrics.snapshot();
+    }
+
+    // ============================= PRIVATE HELPERS ============================= //
+
+    // Takes the client token, then the command token, giving the first back if
+    // the second is refused.
+    private boolean takeRate(String client, String command) {
+        TokenBucket perClient = bucket(client, clientLimit);
+        TokenBucket perCommand = bucket(client + " " + command, commandLimits.get(command));
+        if (perClient != null && !perClient.tryAcquire()) {
+            metrics.increment("admission.rateLimited");
+            return false;
+        }
+        if (perCommand != null && !perCommand.tryAcquire()) {
+            if (perClient != null) perClient.refund();
+            metrics.increment("admission.rateLimited");
+            return false;
+        }
+        return true;
+    }
+
+    private void refundRate(String client, String command) {
+        TokenBucket perClient = bucket(client, clientLimit);
+        TokenBucket perCommand = bucket(client + " " + command, commandLimits.get(command));
+        if (perClient != null) perClient.refund();
+        if (perCommand != null) perCommand.refund();
+    }
+
+    private TokenBucket bucket(String key, Limit limit) {
+        if (limit == null) return null;
+        synchronized (buckets) {
+            return buckets.computeIfAbsent(key, k -> new TokenBucket(limit.ratePerSecond(), limit.burst()));
+        }
+    }
+}
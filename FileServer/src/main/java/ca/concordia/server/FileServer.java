@@ -1,120 +1,556 @@
 package ca.concordia.server;
 
+import ca.concordia.filesystem.FileStat;
+import ca.concordia.filesystem.FileSystem;
 import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.FileSystemMetrics;
+import ca.concordia.filesystem.FsckReport;
+import ca.concordia.filesystem.ListPage;
+import ca.concordia.filesystem.PreconditionFailedException;
+import ca.concordia.filesystem.VersionedContents;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
 
 public class FileServer {
 
-    private final FileSystemManager fsManager;
+    private static final int LIST_PAGE_SIZE = 256;
+    private static final int IDLE_TIMEOUT_MS = 30_000; // persistent connections
+    private static final int FIRST_LINE_GRACE_MS = 500; // on stop, for connections that sent nothing yet
+    private static final Set<String> MUTATING_COMMANDS = Set.of("CREATE", "MKDIR", "WRITE", "WRITE_IF", "DELETE");
+
+    private final FileSystem fsManager;
     private final int port;
 
+    private ReplicationLog replicationLog; // set on a primary
+    private ReplicaFollower follower;      // set on a read-only replica
+    private AdmissionControl admission = AdmissionControl.unlimited();
+    private SSLContext sslContext;       // null: plaintext
+    private List<byte[]> authTokens;     // null: no AUTH required
+    private final FileSystemMetrics serverMetrics = new FileSystemMetrics();
+
+    // ---------- lifecycle ----------
+    private volatile ServerSocket serverSocket;
+    private Thread acceptor;
+    private final Set<Thread> handlers = ConcurrentHashMap.newKeySet();
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final Set<Socket> streams = ConcurrentHashMap.newKeySet(); // REPLICATE, never finish on their own
+    private final Set<Socket> idle = ConcurrentHashMap.newKeySet();    // persistent, between requests
+    private final Set<Socket> fresh = ConcurrentHashMap.newKeySet();   // accepted, no request yet
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
     public FileServer(int port, String fileSystemName, int totalSize) {
-        this.fsManager = new FileSystemManager(fileSystemName, totalSize);
+        this(port, new FileSystemManager(fileSystemName, totalSize));
+    }
+
+    public FileServer(int port, FileSystem fileSystem) {
+        this.fsManager = fileSystem;
         this.port = port;
     }
 
+    public FileSystem getFileSystem() {
+        return fsManager;
+    }
+
+    /** Journals every mutation so replicas can stream it with REPLICATE. */
+    public void enablePrimary() {
+        replicationLog = new ReplicationLog(ReplicationLog.DEFAULT_CAPACITY);
+        fsManager.setListener(replicationLog);
+    }
+
+    /** Follows a primary; this server then only serves READ/LIST/STATS. */
+    public void enableReplica(String primaryHost, int primaryPort, Path stateFile) {
+        enableReplica(primaryHost, primaryPort, stateFile, SocketFactory.getDefault(), null);
+    }
+
+    /** As above, reaching a primary that serves TLS and/or requires AUTH (token may be null). */
+    public void enableReplica(String primaryHost, int primaryPort, Path stateFile,
+                              SocketFactory transport, String token) {
+        follower = new ReplicaFollower(fsManager, primaryHost, primaryPort, stateFile);
+        follower.setTransport(transport, token);
+        Thread t = new Thread(follower, "replica-follower");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Serves TLS instead of plaintext; call before start(). The context's
+     * session cache lets returning clients resume instead of doing a full handshake.
+     */
+    public void enableTls(SSLContext context) {
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(Tls.SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(Tls.SESSION_TIMEOUT_SECONDS);
+        this.sslContext = context;
+    }
+
+    /** Every connection must send AUTH with one of these tokens before any other command. */
+    public void requireAuth(Collection<String> tokens) {
+        List<byte[]> encoded = new ArrayList<>();
+        for (String token : tokens) encoded.add(token.getBytes(StandardCharsets.UTF_8));
+        this.authTokens = encoded;
+    }
+
+    /** Rate limits and the concurrency cap applied to every request. */
+    public void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    // The part of a LIST prefix before the last "/" has to name a directory;
+    // an empty listing is only an answer for one that exists.
+    private String checkListedDirectory(String prefix) {
+        int slash = prefix.lastIndexOf('/');
+        if (slash <= 0) return null;
+        String directory = prefix.substring(0, slash);
+        try {
+            if (!fsManager.stat(directory).directory()) return "ERROR: " + directory + " is not a directory";
+        } catch (Exception e) {
+            return "ERROR: directory " + directory + " does not exist";
+        }
+        return null;
+    }
+
+    // Writes the whole listing on one line, a page at a time, so neither
+    // the full name list nor the joined line is ever built in memory.
+    private void streamListing(PrintWriter writer, String prefix) {
+        String cursor = null;
+        boolean first = true;
+        do {
+            ListPage page = fsManager.listPage(prefix, LIST_PAGE_SIZE, cursor);
+            for (String name : page.names()) {
+                if (!first) writer.print(',');
+                writer.print(name);
+                first = false;
+            }
+            cursor = page.nextCursor();
+        } while (cursor != null);
+        writer.println(first ? "NO_FILES" : "");
+    }
+
     private void handleClient(Socket clientSocket) {
         try (
                 BufferedReader reader = new BufferedReader(
                         new InputStreamReader(clientSocket.getInputStream()));
                 PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true)
         ) {
-            // Test client sends exactly ONE line then closes
-            String line = reader.readLine();
-            if (line == null) return;
+            clientSocket.setSoTimeout(IDLE_TIMEOUT_MS);
+            if (clientSocket instanceof SSLSocket tls) handshake(tls);
+            boolean authenticated = authTokens == null;
+            boolean served = false;
 
-            System.out.println("Received from client: " + line);
+            // Connections are persistent: one request per line until the client
+            // closes. One-shot clients simply close after the first reply.
+            while (true) {
+                // stop() may close it while it waits for a line
+                Set<Socket> waiting = served ? idle : fresh;
+                waiting.add(clientSocket);
+                if (served && stopping.get()) return;
+                String line;
+                try {
+                    line = reader.readLine();
+                } finally {
+                    waiting.remove(clientSocket);
+                }
+                if (line == null || stopping.get() && served) return;
 
-            // split into max 3 parts so WRITE keeps spaces in content
-            String[] parts = line.split(" ", 3);
-            String command = parts[0].toUpperCase();
+                if (line.split(" ", 2)[0].equalsIgnoreCase("AUTH")) {
+                    authenticated = authenticate(line);
+                    writer.println(authenticated ? "SUCCESS" : "ERROR: unauthorized");
+                    if (!authenticated) return;
+                    continue;
+                }
+                if (!authenticated) {
+                    writer.println("ERROR: authentication required");
+                    return;
+                }
 
-            try {
-                switch (command) {
+                if (served) serverMetrics.increment("connections.reused");
+                if (!handleRequest(line, clientSocket, writer)) return;
+                served = true;
+            }
 
-                    case "CREATE": {
-                        if (parts.length < 2) {
-                            writer.println("ERROR: usage CREATE <filename>");
-                            break;
-                        }
-                        fsManager.createFile(parts[1]);
-                        writer.println("SUCCESS");
+        } catch (SocketTimeoutException idleTooLong) {
+            // persistent connection went quiet
+        } catch (SSLException e) {
+            serverMetrics.increment("tls.failures");
+            System.out.println("TLS with " + clientSocket.getInetAddress() + " failed: " + e.getMessage());
+        } catch (Exception e) {
+            if (!clientSocket.isClosed()) e.printStackTrace();
+        } finally {
+            connections.remove(clientSocket);
+            try { clientSocket.close(); } catch (Exception ignore) {}
+        }
+    }
+
+    // Runs the handshake up front, so it is counted before the first reply. A
+    // resumed session keeps the creation time of the one it resumes.
+    private void handshake(SSLSocket tls) throws IOException {
+        long started = System.currentTimeMillis();
+        fresh.add(tls); // stop() may close it mid-handshake
+        try {
+            tls.startHandshake();
+        } finally {
+            fresh.remove(tls);
+        }
+        boolean resumed = tls.getSession().getCreationTime() < started;
+        serverMetrics.increment(resumed ? "tls.resumptions" : "tls.handshakes");
+    }
+
+    // Tokens are compared in constant time so timing does not leak prefixes.
+    private boolean authenticate(String line) {
+        String[] parts = line.split(" ", 2);
+        if (parts.length < 2 || authTokens == null) return authTokens == null;
+        byte[] presented = parts[1].trim().getBytes(StandardCharsets.UTF_8);
+        for (byte[] token : authTokens) {
+            if (MessageDigest.isEqual(token, presented)) return true;
+        }
+        serverMetrics.increment("auth.failures");
+        return false;
+    }
+
+    /** @return false if the connection must not be used for further requests */
+    private boolean handleRequest(String line, Socket clientSocket, PrintWriter writer) {
+        System.out.println("Received from client: " + line);
+
+        // split into max 3 parts so WRITE keeps spaces in content
+        String[] parts = line.split(" ", 3);
+        String command = parts[0].toUpperCase();
+
+        // replication streams are long-lived, so they have a cap of their own
+        String client = clientSocket.getInetAddress().getHostAddress();
+        boolean stream = command.equals("REPLICATE");
+        if (!(stream ? admission.tryAdmitStream(client) : admission.tryAdmit(client, command))) {
+            writer.println("ERROR: BUSY");
+            return true;
+        }
+
+        try {
+            if (follower != null && MUTATING_COMMANDS.contains(command)) {
+                writer.println("ERROR: read-only replica");
+                return true;
+            }
+
+            switch (command) {
+
+                case "CREATE": {
+                    if (parts.length < 2) {
+                        writer.println("ERROR: usage CREATE <filename>");
                         break;
                     }
+                    fsManager.createFile(parts[1]);
+                    writer.println("SUCCESS");
+                    break;
+                }
 
-                    case "WRITE": {
-                        if (parts.length < 3) {
-                            writer.println("ERROR: usage WRITE <filename> <content>");
-                            break;
-                        }
-                        fsManager.writeFile(parts[1], parts[2].getBytes());
-                        writer.println("SUCCESS");
+                case "MKDIR": {
+                    if (parts.length < 2) {
+                        writer.println("ERROR: usage MKDIR <path>");
                         break;
                     }
+                    fsManager.createDirectory(parts[1]);
+                    writer.println("SUCCESS");
+                    break;
+                }
 
-                    case "READ": {
-                        if (parts.length < 2) {
-                            writer.println("ERROR: usage READ <filename>");
-                            break;
-                        }
-                        byte[] data = fsManager.readFile(parts[1]);
-                        String out = new String(data).replace("\n", "");
-                        writer.println(out.isEmpty() ? "EMPTY" : out);
+                case "WRITE": {
+                    if (parts.length < 3) {
+                        writer.println("ERROR: usage WRITE <filename> <content>");
                         break;
                     }
+                    fsManager.writeFile(parts[1], parts[2].getBytes());
+                    writer.println("SUCCESS");
+                    break;
+                }
 
-                    case "DELETE": {
-                        if (parts.length < 2) {
-                            writer.println("ERROR: usage DELETE <filename>");
-                            break;
-                        }
-                        fsManager.deleteFile(parts[1]);
-                        writer.println("SUCCESS");
+                case "READ": {
+                    if (parts.length < 2) {
+                        writer.println("ERROR: usage READ <filename>");
+                        break;
+                    }
+                    byte[] data = fsManager.readFile(parts[1]);
+                    String out = new String(data).replace("\n", "");
+                    writer.println(out.isEmpty() ? "EMPTY" : out);
+                    break;
+                }
+
+                case "STAT": {
+                    if (parts.length < 2) {
+                        writer.println("ERROR: usage STAT <path>");
+                        break;
+                    }
+                    FileStat stat = fsManager.stat(parts[1]);
+                    writer.println(stat.etag() + " " + stat.size() + " " + (stat.directory() ? "DIR" : "FILE"));
+                    break;
+                }
+
+                case "READ_IF_CHANGED": {
+                    if (parts.length < 3) {
+                        writer.println("ERROR: usage READ_IF_CHANGED <filename> <etag>");
+                        break;
+                    }
+                    VersionedContents read = fsManager.readFileIfChanged(parts[1], parts[2].trim());
+                    if (read == null) {
+                        writer.println("NOT_MODIFIED");
+                        break;
+                    }
+                    String out = new String(read.data()).replace("\n", "");
+                    writer.println(read.etag() + " " + (out.isEmpty() ? "EMPTY" : out));
+                    break;
+                }
+
+                case "WRITE_IF": {
+                    // WRITE_IF <filename> <etag> <content>
+                    String[] args = line.split(" ", 4);
+                    if (args.length < 4) {
+                        writer.println("ERROR: usage WRITE_IF <filename> <etag> <content>");
+                        break;
+                    }
+                    try {
+                        String etag = fsManager.writeFileIf(args[1], args[2], args[3].getBytes());
+                        writer.println("SUCCESS " + etag);
+                    } catch (PreconditionFailedException stale) {
+                        writer.println("PRECONDITION_FAILED " + stale.getCurrentEtag());
+                    }
+                    break;
+                }
+
+                case "DELETE": {
+                    if (parts.length < 2) {
+                        writer.println("ERROR: usage DELETE <filename>");
                         break;
                     }
+                    fsManager.deleteFile(parts[1]);
+                    writer.println("SUCCESS");
+                    break;
+                }
 
-                    case "LIST": {
-                        String[] files = fsManager.listFiles();
-                        if (files.length == 0) {
+                case "LIST": {
+                    // LIST [prefix] [limit] [cursor]
+                    String[] args = line.trim().split(" +");
+                    String prefix = args.length > 1 ? args[1] : "";
+                    String cursor = args.length > 3 ? args[3] : null;
+                    String problem = checkListedDirectory(prefix);
+                    if (problem != null) {
+                        writer.println(problem);
+                        break;
+                    }
+                    if (args.length > 2) {
+                        int limit;
+                        try {
+                            limit = Integer.parseInt(args[2]);
+                        } catch (NumberFormatException e) {
+                            limit = 0; // not a number, same answer as a zero limit
+                        }
+                        if (limit < 1) {
+                            writer.println("ERROR: usage LIST [prefix] [limit] [cursor]");
+                            break;
+                        }
+                        ListPage page = fsManager.listPage(prefix, limit, cursor);
+                        if (page.names().isEmpty()) {
                             writer.println("NO_FILES");
                         } else {
-                            writer.println(String.join(",", files));
+                            writer.println(String.join(",", page.names())
+                                    + (page.hasMore() ? " NEXT " + page.nextCursor() : ""));
                         }
                         break;
                     }
+                    streamListing(writer, prefix);
+                    break;
+                }
+
+                case "STATS": {
+                    List<String> pairs = new ArrayList<>();
+                    for (Map.Entry<String, Number> stat : fsManager.getStats().entrySet()) {
+                        pairs.add(stat.getKey() + "=" + stat.getValue());
+                    }
+                    for (Map.Entry<String, Number> stat : admission.getStats().entrySet()) {
+                        pairs.add(stat.getKey() + "=" + stat.getValue());
+                    }
+                    for (Map.Entry<String, Number> stat : serverMetrics.snapshot().entrySet()) {
+                        pairs.add(stat.getKey() + "=" + stat.getValue());
+                    }
+                    writer.println(String.join(",", pairs));
+                    break;
+                }
 
-                    default:
-                        writer.println("ERROR: Unknown command");
+                case "FSCK": {
+                    FsckReport report = fsManager.check();
+                    String summary = "files=" + report.files() + ",blocks=" + report.blocks();
+                    writer.println(report.isClean()
+                            ? "OK " + summary
+                            : "CORRUPT " + summary + " " + String.join("; ", report.problems()));
+                    break;
                 }
 
-            } catch (Exception e) {
-                // Any FS error gets reported, but the server keeps running
-                writer.println("ERROR: " + e.getMessage());
+                case "REPLICATE": {
+                    if (replicationLog == null) {
+                        writer.println("ERROR: replication is not enabled on this server");
+                        break;
+                    }
+                    streams.add(clientSocket);
+                    try {
+                        replicationLog.serve(fsManager, parts, writer);
+                    } finally {
+                        streams.remove(clientSocket);
+                    }
+                    break;
+                }
+
+                default:
+                    writer.println("ERROR: Unknown command");
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            // Any FS error gets reported, but the server keeps running.
+            // Most FS messages already carry the prefix.
+            String message = String.valueOf(e.getMessage());
+            writer.println(message.startsWith("ERROR: ") ? message : "ERROR: " + message);
         } finally {
-            try { clientSocket.close(); } catch (Exception ignore) {}
+            if (stream) admission.releaseStream();
+            else admission.release();
         }
+        return !stream;
     }
 
-    public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Server started. Listening on port " + port + "...");
+    /**
+     * Binds the port and accepts clients on a background thread. The port is
+     * listening by the time this returns.
+     */
+    public void start() throws IOException {
+        ServerSocket socket = sslContext != null
+                ? sslContext.getServerSocketFactory().createServerSocket()
+                : new ServerSocket();
+        socket.setReuseAddress(true); // a restarted server can rebind right away
+        socket.bind(new InetSocketAddress(port));
+        serverSocket = socket;
+        System.out.println("Server started. Listening on port " + port + (sslContext != null ? " (TLS)" : "") + "...");
+
+        acceptor = new Thread(this::acceptLoop, "file-server-acceptor");
+        acceptor.start();
+    }
 
+    private void acceptLoop() {
+        try {
             while (true) {
                 Socket client = serverSocket.accept();
-                new Thread(() -> handleClient(client)).start();
+                // each connection holds a thread until it closes, so the cap
+                // applies before one is started
+                if (!admission.tryOpenConnection()) {
+                    rejectConnection(client);
+                    continue;
+                }
+                connections.add(client);
+                client.setTcpNoDelay(true); // small request/reply lines, don't wait on Nagle
+                Thread handler = new Thread(() -> {
+                    try {
+                        handleClient(client);
+                    } finally {
+                        admission.connectionClosed();
+                        handlers.remove(Thread.currentThread());
+                    }
+                });
+                handlers.add(handler);
+                handler.start();
             }
+        } catch (IOException e) {
+            if (!stopping.get()) e.printStackTrace();
+        }
+    }
 
-        } catch (Exception e) {
+    // Runs on the acceptor, so it must not block: a TLS socket would first
+    // need a handshake, so it is just closed.
+    private void rejectConnection(Socket client) {
+        try (client) {
+            if (!(client instanceof SSLSocket)) {
+                client.getOutputStream().write("ERROR: BUSY\n".getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException ignore) {
+            // the client is turned away either way
+        }
+    }
+
+    /**
+     * Stops accepting, lets in-flight requests finish for up to the drain
+     * timeout, then drops whatever is left and closes the file system, which
+     * flushes its metadata and closes the image. Connections that have not
+     * sent anything get a short grace period rather than the whole timeout.
+     * Safe to call more than once.
+     */
+    public void stop(long drainTimeout, TimeUnit unit) {
+        if (!stopping.compareAndSet(false, true)) return;
+        try {
+            long deadline = System.nanoTime() + unit.toNanos(drainTimeout);
+            try { if (serverSocket != null) serverSocket.close(); } catch (IOException ignore) {}
+            if (acceptor != null) acceptor.join(); // no handler can be added after this
+            if (follower != null) follower.stop();
+            for (Socket s : streams) {
+                try { s.close(); } catch (IOException ignore) {}
+            }
+            for (Socket s : idle) {
+                try { s.close(); } catch (IOException ignore) {}
+            }
+
+            joinHandlers(Math.min(deadline, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FIRST_LINE_GRACE_MS)));
+            for (Socket s : fresh) {
+                try { s.close(); } catch (IOException ignore) {}
+            }
+            joinHandlers(deadline);
+            if (!handlers.isEmpty()) {
+                System.out.println("Drain timed out, closing " + connections.size() + " connections");
+                for (Socket s : connections) {
+                    try { s.close(); } catch (IOException ignore) {}
+                }
+            }
+
+            fsManager.close();
+            System.out.println("Server on port " + port + " stopped.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            terminated.countDown();
         }
     }
+
+    private void joinHandlers(long deadline) throws InterruptedException {
+        for (Thread handler : handlers) {
+            long leftMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (leftMs <= 0) return;
+            handler.join(leftMs);
+        }
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        terminated.await();
+    }
+
+    /** @return false if the server had not stopped within the timeout */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
 }
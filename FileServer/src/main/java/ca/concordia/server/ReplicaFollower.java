@@ -0,0 +1,212 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystem;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.net.SocketFactory;
+
+/**
+ * Replica side of replication: keeps a connection to the primary open, applies
+ * the streamed mutations to the local image and records the last applied
+ * position so a restarted replica can resume instead of resyncing.
+ *
+ * An op that cannot be applied is never skipped: the replica reconnects and
+ * resumes from the last op it did apply, and if the same op fails again it
+ * asks for a full snapshot instead.
+ */
+public class ReplicaFollower implements Runnable {
+
+    private static final long RETRY_DELAY_MS = 500;
+    // a live primary sends at least a PING every heartbeat, so silence this
+    // long means it died without closing the connection
+    private static final int READ_TIMEOUT_MS = (int) (3 * ReplicationLog.HEARTBEAT_MS);
+
+    private final FileSystem fs;
+    private final String primaryHost;
+    private final int primaryPort;
+    private final Path stateFile;
+
+    private SocketFactory transport = SocketFactory.getDefault();
+    private String token; // sent as AUTH when the primary requires it
+
+    private volatile boolean running = true;
+    private volatile Socket socket;
+    private volatile long epoch = -1;
+    private volatile long appliedSeq = -1;
+    private long failedSeq = -1; // op that failed on the previous connection
+
+    public ReplicaFollower(FileSystem fs, String primaryHost, int primaryPort, Path stateFile) {
+        this.fs = fs;
+        this.primaryHost = primaryHost;
+        this.primaryPort = primaryPort;
+        this.stateFile = stateFile;
+        loadState();
+    }
+
+    /** Connects through factory, e.g. an SSLContext's socket factory, and authenticates with token. */
+    public void setTransport(SocketFactory factory, String token) {
+        this.transport = factory;
+        this.token = token;
+    }
+
+    public long getAppliedSeq() {
+        return appliedSeq;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try (Socket s = transport.createSocket(primaryHost, primaryPort);
+                 BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                 PrintWriter writer = new PrintWriter(s.getOutputStream(), true)) {
+                socket = s;
+                s.setSoTimeout(READ_TIMEOUT_MS);
+                if (token != null) {
+                    writer.println("AUTH " + token);
+                    String reply = reader.readLine();
+                    if (!"SUCCESS".equals(reply)) throw new IOException("Primary refused AUTH: " + reply);
+                }
+                writer.println("REPLICATE " + epoch + " " + appliedSeq);
+                follow(reader);
+            } catch (SocketTimeoutException e) {
+                if (running) System.out.println("Replica heard nothing from primary " + primaryHost + ":" + primaryPort
+                        + " for " + READ_TIMEOUT_MS + "ms, retrying from seq " + appliedSeq);
+            } catch (IOException e) {
+                if (running) System.out.println("Replica lost primary " + primaryHost + ":" + primaryPort
+                        + " (" + e.getMessage() + "), retrying from seq " + appliedSeq);
+            }
+            try {
+                Thread.sleep(RETRY_DELAY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+        try { if (socket != null) socket.close(); } catch (IOException ignore) {}
+    }
+
+    // ============================= PRIVATE HELPERS ============================= //
+
+    private void follow(BufferedReader reader) throws IOException {
+        String header = reader.readLine();
+        if (header == null) return;
+        String[] parts = header.split(" ");
+        if (parts.length < 3 || !(parts[0].equals("RESUME") || parts[0].equals("SNAPSHOT"))) {
+            throw new IOException("Unexpected replication header: " + header);
+        }
+        long newEpoch = Long.parseLong(parts[1]);
+        long newSeq   = Long.parseLong(parts[2]);
+        if (parts[0].equals("SNAPSHOT")) applySnapshot(reader);
+        epoch = newEpoch;
+        appliedSeq = newSeq;
+        saveState();
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.equals("PING")) continue;
+            String[] op = line.split(" ", 5);
+            if (op.length < 4 || !op[0].equals("OP")) throw new IOException("Unexpected replication line: " + line);
+            long seq = Long.parseLong(op[1]);
+            try {
+                apply(op[2], op[3], op.length > 4 ? op[4] : "");
+            } catch (IOException e) {
+                // failed twice in a row: an unknown epoch makes the primary send a snapshot
+                if (seq == failedSeq) epoch = -1;
+                failedSeq = seq;
+                saveState();
+                throw e;
+            }
+            appliedSeq = seq;
+            saveState();
+        }
+    }
+
+    private void applySnapshot(BufferedReader reader) throws IOException {
+        failedSeq = -1;
+        List<String> dirs = new ArrayList<>();
+        Map<String, String> files = new LinkedHashMap<>();
+        String line;
+        while ((line = reader.readLine()) != null && !line.equals("END")) {
+            String[] parts = line.split(" ", 3);
+            if (parts[0].equals("DIR")) dirs.add(parts[1]);
+            else files.put(parts[1], parts.length > 2 ? parts[2] : "");
+        }
+        if (line == null) throw new IOException("Primary closed during snapshot");
+
+        deleteMissing("", new HashSet<>(dirs), files.keySet());
+        for (String dir : dirs) apply("MKDIR", dir, "");
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            apply("CREATE", file.getKey(), "");
+            apply("WRITE", file.getKey(), file.getValue());
+        }
+        System.out.println("Replica loaded snapshot of " + files.size() + " files");
+    }
+
+    // Depth first, so directories are empty by the time they are removed.
+    private void deleteMissing(String dir, Set<String> keepDirs, Set<String> keepFiles) throws IOException {
+        for (String name : fs.listFiles(dir)) {
+            if (name.endsWith("/")) {
+                String path = dir + name.substring(0, name.length() - 1);
+                deleteMissing(path + "/", keepDirs, keepFiles);
+                if (!keepDirs.contains(path)) apply("DELETE", path, "");
+            } else if (!keepFiles.contains(dir + name)) {
+                apply("DELETE", dir + name, "");
+            }
+        }
+    }
+
+    // Replays are idempotent: a snapshot may already contain the effect of later ops.
+    private void apply(String command, String name, String data) throws IOException {
+        try {
+            switch (command) {
+                case "CREATE" -> {
+                    if (!fs.exists(name)) fs.createFile(name);
+                }
+                case "MKDIR" -> {
+                    if (!fs.exists(name)) fs.createDirectory(name);
+                }
+                case "WRITE" -> fs.writeFile(name, Base64.getDecoder().decode(data));
+                case "DELETE" -> {
+                    if (fs.exists(name)) fs.deleteFile(name);
+                }
+                default -> throw new IOException("unknown op " + command);
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("could not apply " + command + " " + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void loadState() {
+        try {
+            if (!Files.exists(stateFile)) return;
+            String[] parts = Files.readString(stateFile).trim().split(" ");
+            epoch = Long.parseLong(parts[0]);
+            appliedSeq = Long.parseLong(parts[1]);
+        } catch (Exception e) {
+            System.out.println("Replica state unreadable, will resync: " + e.getMessage());
+        }
+    }
+
+    private void saveState() throws IOException {
+        Files.writeString(stateFile, epoch + " " + appliedSeq);
+    }
+}
@@ -0,0 +1,147 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystem;
+import ca.concordia.filesystem.FileSystemListener;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Primary side of replication: a bounded in-memory journal of mutations that
+ * replicas stream from. A replica that reconnects within the journal window
+ * resumes where it left off; otherwise it first receives a full snapshot.
+ *
+ * Wire format (one line each, contents base64 encoded):
+ *   RESUME|SNAPSHOT <epoch> <seq>, DIR <path>... and FILE <path> <data>..., END,
+ *   then OP <seq> CREATE|MKDIR|WRITE|DELETE <path> [data] and PING heartbeats.
+ */
+public class ReplicationLog implements FileSystemListener {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    static final long HEARTBEAT_MS = 1000;
+
+    private record Entry(long seq, String op) {}
+
+    // identifies this primary's journal; a restarted primary forces a resync
+    private final long epoch = ThreadLocalRandom.current().nextLong(Long.MAX_VALUE);
+    private final int capacity;
+    private final ArrayDeque<Entry> journal = new ArrayDeque<>();
+    private long lastSeq = 0;
+
+    public ReplicationLog(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    // ============================= JOURNAL ============================= //
+
+    private synchronized void append(String op) {
+        lastSeq++;
+        journal.addLast(new Entry(lastSeq, op));
+        if (journal.size() > capacity) journal.removeFirst();
+        notifyAll();
+    }
+
+    @Override
+    public void fileCreated(String fileName) {
+        append("CREATE " + fileName);
+    }
+
+    @Override
+    public void directoryCreated(String path) {
+        append("MKDIR " + path);
+    }
+
+    @Override
+    public void fileWritten(String fileName, byte[] contents) {
+        append("WRITE " + fileName + " " + Base64.getEncoder().encodeToString(contents));
+    }
+
+    @Override
+    public void fileDeleted(String fileName) {
+        append("DELETE " + fileName);
+    }
+
+    private synchronized boolean canResume(long fromEpoch, long fromSeq) {
+        if (fromEpoch != epoch || fromSeq > lastSeq) return false;
+        long oldest = journal.isEmpty() ? lastSeq + 1 : journal.peekFirst().seq();
+        return fromSeq >= oldest - 1;
+    }
+
+    // Entries after seq, waiting up to timeoutMs for one; null once seq has left the window.
+    private synchronized List<Entry> awaitAfter(long seq, long timeoutMs) throws InterruptedException {
+        if (lastSeq == seq) wait(timeoutMs);
+        if (!journal.isEmpty() && journal.peekFirst().seq() > seq + 1) return null;
+
+        List<Entry> out = new ArrayList<>();
+        for (Entry e : journal) {
+            if (e.seq() > seq) out.add(e);
+        }
+        return out;
+    }
+
+    // ============================= STREAMING ============================= //
+
+    // Pre-order, so a directory always arrives before its contents.
+    private void sendTree(FileSystem fs, String dir, PrintWriter writer) {
+        for (String name : fs.listFiles(dir)) {
+            if (name.endsWith("/")) {
+                String path = dir + name.substring(0, name.length() - 1);
+                writer.println("DIR " + path);
+                sendTree(fs, path + "/", writer);
+                continue;
+            }
+            byte[] data;
+            try {
+                data = fs.readFile(dir + name);
+            } catch (Exception deletedMeanwhile) {
+                continue;
+            }
+            writer.println("FILE " + dir + name + " " + Base64.getEncoder().encodeToString(data));
+        }
+    }
+
+    /** Serves one replica connection until it disconnects or falls out of the window. */
+    public void serve(FileSystem fs, String[] parts, PrintWriter writer) throws Exception {
+        long fromEpoch = parts.length > 1 ? Long.parseLong(parts[1]) : -1;
+        long fromSeq   = parts.length > 2 ? Long.parseLong(parts[2].trim()) : -1;
+
+        long seq;
+        if (canResume(fromEpoch, fromSeq)) {
+            seq = fromSeq;
+            writer.println("RESUME " + epoch + " " + seq);
+        } else {
+            // Later ops are replayed on top of the snapshot, so reading the
+            // files after taking seq can only make the replica briefly ahead.
+            seq = getLastSeq();
+            writer.println("SNAPSHOT " + epoch + " " + seq);
+            sendTree(fs, "", writer);
+            writer.println("END");
+        }
+        System.out.println("Replica attached at seq " + seq);
+
+        while (!writer.checkError()) {
+            List<Entry> entries = awaitAfter(seq, HEARTBEAT_MS);
+            if (entries == null) return; // too far behind, replica will resync
+            if (entries.isEmpty()) {
+                writer.println("PING");
+                continue;
+            }
+            for (Entry e : entries) {
+                writer.println("OP " + e.seq() + " " + e.op());
+                seq = e.seq();
+            }
+        }
+    }
+}
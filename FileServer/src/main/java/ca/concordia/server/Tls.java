@@ -0,0 +1,49 @@
+package ca.concordia.server;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Builds SSLContexts from PKCS12 keystores. Reuse one context per process:
+ * its session cache is what makes resumption, and so cheap reconnects, possible.
+ */
+public final class Tls {
+
+    static final int SESSION_CACHE_SIZE = 1024;
+    static final int SESSION_TIMEOUT_SECONDS = 3600;
+
+    private Tls() {}
+
+    /** Server side: presents the key and certificate held in keystore. */
+    public static SSLContext serverContext(Path keystore, char[] password) throws Exception {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(load(keystore, password), password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /** Client side: trusts the certificates in truststore, e.g. a self-signed server certificate. */
+    public static SSLContext clientContext(Path truststore, char[] password) throws Exception {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(load(truststore, password));
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf.getTrustManagers(), null);
+        context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        return context;
+    }
+
+    private static KeyStore load(Path path, char[] password) throws Exception {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(path)) {
+            store.load(in, password);
+        }
+        return store;
+    }
+}
@@ -0,0 +1,39 @@
+package ca.concordia.server;
+
+/**
+ * Classic token bucket: holds up to burst tokens and refills at ratePerSecond.
+ * tryAcquire never blocks, so callers can reject instead of queueing.
+ */
+public class TokenBucket {
+
+    private final double ratePerNano;
+    private final double burst;
+
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double ratePerSecond, double burst) {
+        this.ratePerNano = ratePerSecond / 1_000_000_000.0;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1) return false;
+        tokens -= 1;
+        return true;
+    }
+
+    /** Returns a token taken by a request that was rejected by a later check. */
+    public synchronized void refund() {
+        tokens = Math.min(burst, tokens + 1);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerNano);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,137 @@
+import ca.concordia.server.AdmissionControl;
+import ca.concordia.server.FileServer;
+import helpers.ClientRunner;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdmissionTests {
+
+    static final int PORT = 12420;
+    static FileServer server;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        File dir = Files.createTempDirectory("admission").toFile();
+        server = new FileServer(PORT, new File(dir, "admission.dat").getPath(), 10 * 128);
+        AdmissionControl admission = new AdmissionControl(8);
+        admission.limitCommand("WRITE", 0.01, 2); // effectively no refill during the test
+        server.setAdmissionControl(admission);
+
+        server.start();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void testCommandLimitRejectsOnlyThatCommand() throws Exception {
+        assertEquals("SUCCESS", ClientRunner.send(PORT, "CREATE limited"));
+        assertEquals("SUCCESS", ClientRunner.send(PORT, "WRITE limited one"));
+        assertEquals("SUCCESS", ClientRunner.send(PORT, "WRITE limited two"));
+        assertEquals("ERROR: BUSY", ClientRunner.send(PORT, "WRITE limited three"));
+
+        // other commands from the same client are unaffected
+        assertEquals("two", ClientRunner.send(PORT, "READ limited"));
+        assertTrue(ClientRunner.send(PORT, "STATS").contains("admission.rateLimited=1"));
+    }
+
+    @Test
+    void testConcurrencyCapRejectsWithoutQueueing() {
+        AdmissionControl admission = new AdmissionControl(1);
+        assertTrue(admission.tryAdmit("10.0.0.1", "READ"));
+        assertFalse(admission.tryAdmit("10.0.0.2", "READ"));
+        admission.release();
+        assertTrue(admission.tryAdmit("10.0.0.2", "READ"));
+        assertEquals(1L, admission.getStats().get("admission.busy"));
+    }
+
+    @Test
+    void testClientLimitIsPerAddress() {
+        AdmissionControl admission = new AdmissionControl(100);
+        admission.limitClients(0.01, 1);
+        assertTrue(admission.tryAdmit("10.0.0.1", "READ"));
+        admission.release();
+        assertFalse(admission.tryAdmit("10.0.0.1", "LIST"));
+        assertTrue(admission.tryAdmit("10.0.0.2", "READ"));
+    }
+
+    @Test
+    void testRejectedRequestSpendsNoClientToken() {
+        AdmissionControl admission = new AdmissionControl(100);
+        admission.limitClients(0.01, 2);
+        admission.limitCommand("WRITE", 0.01, 1);
+        assertTrue(admission.tryAdmit("10.0.0.1", "WRITE"));
+        admission.release();
+        assertFalse(admission.tryAdmit("10.0.0.1", "WRITE"));
+        // the refused WRITE gave its client token back
+        assertTrue(admission.tryAdmit("10.0.0.1", "READ"));
+    }
+
+    @Test
+    void testReplicationStreamsHaveTheirOwnCap() {
+        AdmissionControl admission = new AdmissionControl(1);
+        admission.limitStreams(1);
+        assertTrue(admission.tryAdmitStream("10.0.0.9"));
+        assertFalse(admission.tryAdmitStream("10.0.0.9"));
+        // a held stream does not take the request slot, nor the other way round
+        assertTrue(admission.tryAdmit("10.0.0.1", "READ"));
+        admission.releaseStream();
+        assertTrue(admission.tryAdmitStream("10.0.0.9"));
+        assertEquals(1L, admission.getStats().get("admission.streamsBusy"));
+    }
+
+    @Test
+    void testConnectionCapTurnsAwayExtraConnections() throws Exception {
+        int port = 12421;
+        File dir = Files.createTempDirectory("connections").toFile();
+        FileServer capped = new FileServer(port, new File(dir, "capped.dat").getPath(), 10 * 128);
+        AdmissionControl admission = new AdmissionControl(8);
+        admission.limitConnections(2);
+        capped.setAdmissionControl(admission);
+        capped.start();
+        try (Socket second = new Socket("localhost", port)) {
+            try (Socket first = new Socket("localhost", port)) {
+                assertEquals("NO_FILES", request(first, "LIST"));
+                assertEquals("NO_FILES", request(second, "LIST"));
+
+                try (Socket third = new Socket("localhost", port)) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(third.getInputStream()));
+                    assertEquals("ERROR: BUSY", in.readLine());
+                    assertNull(in.readLine(), "rejected connection should be closed");
+                }
+            } // closing first frees a slot
+
+            String reply = null;
+            for (int i = 0; i < 50 && !"NO_FILES".equals(reply); i++) {
+                Thread.sleep(20); // the handler gives its slot back once it sees the close
+                try (Socket retry = new Socket("localhost", port)) {
+                    reply = request(retry, "LIST");
+                }
+            }
+            assertEquals("NO_FILES", reply);
+        } finally {
+            capped.stop(1, TimeUnit.SECONDS);
+        }
+        assertTrue(admission.getStats().get("admission.connectionsRejected").longValue() >= 1);
+    }
+
+    static String request(Socket socket, String line) throws Exception {
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        out.println(line);
+        return in.readLine();
+    }
+}
@@ -1,5 +1,28 @@
+import ca.concordia.filesystem.FileStat;
+import ca.concordia.filesystem.FileSystem;
 import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.FsckReport;
+import ca.concordia.filesystem.ListPage;
+import ca.concordia.filesystem.PreconditionFailedException;
+import ca.concordia.filesystem.ShardedFileSystem;
+import ca.concordia.filesystem.TieredFileSystem;
+import ca.concordia.filesystem.VersionedContents;
+import ca.concordia.filesystem.WriteBackFileSystem;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -11,6 +34,18 @@ public class FileSystemTests {
         fs = new FileSystemManager("testfs.dat", 10 * 128);
     }
 
+    @TempDir
+    Path dir; // fresh for every test
+
+    // Opening the same path again is how tests simulate a restart.
+    String imagePath() {
+        return dir.resolve("fs.dat").toString();
+    }
+
+    FileSystemManager openImage() {
+        return new FileSystemManager(imagePath(), 10 * 128);
+    }
+
     @Test
     void testCreateFile() throws Exception {
         fs.createFile("a.txt");
@@ -54,4 +89,630 @@ public class FileSystemTests {
             assertNotEquals("b.txt", fileName);
         }
     }
+
+    @Test
+    void testReadersNeverSeeTornWrites() throws Exception {
+        FileSystemManager local = openImage();
+        local.createFile("torn");
+        String a = "A".repeat(300);
+        String b = "B".repeat(300);
+        local.writeFile("torn", a.getBytes());
+
+        AtomicBoolean done = new AtomicBoolean(false);
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 200; i++) {
+                    local.writeFile("torn", (i % 2 == 0 ? b : a).getBytes());
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            } finally {
+                done.set(true);
+            }
+        });
+        writer.start();
+
+        while (!done.get()) {
+            String read = new String(local.readFile("torn"));
+            assertTrue(read.equals(a) || read.equals(b), "Reader observed a partially written file");
+        }
+        writer.join();
+    }
+
+    @Test
+    void testDeduplicationSharesIdenticalBlocks() throws Exception {
+        FileSystemManager local = openImage();
+        local.setDeduplication(true);
+        String content = "x".repeat(256);
+        int free = freeBlocks(local);
+
+        // two files of two identical blocks each take up a single block
+        local.createFile("one");
+        local.createFile("two");
+        local.writeFile("one", content.getBytes());
+        local.writeFile("two", content.getBytes());
+        assertEquals(free - 1, freeBlocks(local));
+
+        local.deleteFile("one");
+        assertEquals(content, new String(local.readFile("two")));
+        local.deleteFile("two");
+        assertEquals(free, freeBlocks(local));
+    }
+
+    @Test
+    void testCompressedFileRoundTripsAndPersists() throws Exception {
+        FileSystemManager local = openImage();
+        local.setCompression(true);
+        // 2000 bytes would need 16 raw blocks; only 9 data blocks exist
+        String text = "the quick brown fox jumps over the lazy dog ".repeat(50).substring(0, 2000);
+
+        local.createFile("big.txt");
+        local.writeFile("big.txt", text.getBytes());
+        assertEquals(text, new String(local.readFile("big.txt")));
+
+        FileSystemManager reopened = openImage();
+        assertEquals(text, new String(reopened.readFile("big.txt")));
+    }
+
+    @Test
+    void testShardedFileSystemRoutesAndMergesListing() throws Exception {
+        ShardedFileSystem sharded = new ShardedFileSystem(imagePath(), 10 * 128, 4);
+
+        // more files than a single image has FEntry slots
+        for (int i = 0; i < 8; i++) {
+            sharded.createFile("f" + i);
+            sharded.writeFile("f" + i, ("data" + i).getBytes());
+        }
+        for (int i = 0; i < 8; i++) {
+            assertEquals("data" + i, new String(sharded.readFile("f" + i)));
+        }
+        String[] names = sharded.listFiles();
+        Arrays.sort(names);
+        assertArrayEquals(new String[]{"f0", "f1", "f2", "f3", "f4", "f5", "f6", "f7"}, names);
+    }
+
+    @Test
+    void testDirectoriesNestAndPersist() throws Exception {
+        FileSystemManager local = openImage();
+
+        local.createDirectory("docs");
+        local.createDirectory("docs/old");
+        local.createFile("docs/a.txt");
+        local.createFile("a.txt"); // same name, different directory
+        local.writeFile("docs/a.txt", "nested".getBytes());
+        local.writeFile("a.txt", "top".getBytes());
+
+        assertArrayEquals(new String[]{"a.txt", "docs/"}, local.listFiles());
+        assertArrayEquals(new String[]{"a.txt", "old/"}, local.listFiles("docs"));
+        assertThrows(Exception.class, () -> local.createFile("missing/x"));
+        Exception notEmpty = assertThrows(Exception.class, () -> local.deleteFile("docs"));
+        assertTrue(notEmpty.getMessage().contains("not empty"));
+
+        FileSystemManager reopened = openImage();
+        assertEquals("nested", new String(reopened.readFile("docs/a.txt")));
+        assertEquals("top", new String(reopened.readFile("a.txt")));
+        assertArrayEquals(new String[]{"a.txt", "old/"}, reopened.listFiles("docs"));
+
+        reopened.deleteFile("docs/old");
+        reopened.deleteFile("docs/a.txt");
+        reopened.deleteFile("docs");
+        assertArrayEquals(new String[]{"a.txt"}, reopened.listFiles());
+    }
+
+    @Test
+    void testNestedDeleteOnFullImageRewritesParentInPlace() throws Exception {
+        FileSystemManager local = openImage();
+        local.createDirectory("docs");
+        local.createFile("docs/a.txt");
+        local.createFile("docs/b.txt");
+        local.writeFile("docs/a.txt", "x".repeat(8 * 128).getBytes());
+        assertEquals(0, freeBlocks(local));
+
+        local.deleteFile("docs/b.txt");
+        assertEquals(1, local.getStats().get("dir.inPlaceWrites").intValue());
+        assertArrayEquals(new String[]{"a.txt"}, local.listFiles("docs"));
+        assertTrue(local.check().isClean(), local.check().problems().toString());
+
+        // the last child drops the directory's only block instead of rewriting it
+        local.deleteFile("docs/a.txt");
+        assertEquals(9, freeBlocks(local));
+        local.close();
+
+        FileSystemManager reopened = openImage();
+        assertArrayEquals(new String[0], reopened.listFiles("docs"));
+        assertTrue(reopened.check().isClean(), reopened.check().problems().toString());
+        reopened.deleteFile("docs");
+    }
+
+    @Test
+    void testCrashDuringNestedDeleteLeavesOnlyAStaleRecord() throws Exception {
+        FileSystemManager local = openImage();
+        local.createDirectory("docs");
+        local.createFile("docs/a.txt");
+        local.createFile("docs/b.txt");
+        local.writeFile("docs/a.txt", "x".repeat(8 * 128).getBytes());
+        byte[] before = Files.readAllBytes(Path.of(imagePath()));
+        local.deleteFile("docs/b.txt");
+        byte[] after = Files.readAllBytes(Path.of(imagePath()));
+
+        int leaf = blockHolding(after, "a.txt");
+        int crc = 10 * 128 + leaf * 4;
+        // crashed before the leaf was rewritten: it still lists b.txt
+        byte[] image = after.clone();
+        System.arraycopy(before, leaf * 128, image, leaf * 128, 128);
+        System.arraycopy(before, crc, image, crc, 4);
+        assertReopensWithOnlyA(image);
+        // crashed after the in-place rewrite, before its checksum was saved
+        image = after.clone();
+        System.arraycopy(before, crc, image, crc, 4);
+        assertReopensWithOnlyA(image);
+    }
+
+    void assertReopensWithOnlyA(byte[] image) throws Exception {
+        Files.write(Path.of(imagePath()), image);
+        FileSystemManager reopened = openImage();
+        assertArrayEquals(new String[]{"docs/"}, reopened.listFiles());
+        assertArrayEquals(new String[]{"a.txt"}, reopened.listFiles("docs"));
+        assertTrue(reopened.check().isClean(), reopened.check().problems().toString());
+    }
+
+    @Test
+    void testUnlistedNestedEntryIsAnOrphanNotARootFile() throws Exception {
+        FileSystemManager local = openImage();
+        local.createDirectory("docs");
+        local.createFile("docs/a.txt");
+        local.close();
+
+        int leaf = blockHolding(Files.readAllBytes(Path.of(imagePath())), "a.txt");
+        try (RandomAccessFile raw = new RandomAccessFile(imagePath(), "rw")) {
+            raw.seek(leaf * 128L);
+            raw.write(new byte[128]);
+            raw.seek(10 * 128 + leaf * 4L);
+            raw.writeInt(0);
+        }
+
+        FileSystemManager reopened = openImage();
+        assertArrayEquals(new String[]{"docs/"}, reopened.listFiles());
+        assertEquals(1, reopened.getStats().get("dir.orphans").intValue());
+        assertTrue(reopened.check().problems().toString().contains("a.txt: orphaned"));
+    }
+
+    @Test
+    void testDirectoryUpdateRewritesOneBlock() throws Exception {
+        FileSystemManager local = openImage();
+        local.createDirectory("docs");
+        local.createFile("docs/a.txt");
+        int free = freeBlocks(local);
+
+        // copy-on-write: the new leaf block is taken before the old one is released
+        local.createFile("docs/b.txt");
+        assertEquals(free, freeBlocks(local));
+        assertEquals(128, local.stat("docs").size());
+
+        FileSystemManager reopened = openImage();
+        assertArrayEquals(new String[]{"a.txt", "b.txt"}, reopened.listFiles("docs"));
+    }
+
+    @Test
+    void testPaginatedListingWithPrefix() throws Exception {
+        ShardedFileSystem sharded = new ShardedFileSystem(imagePath(), 10 * 128, 3);
+        for (String name : new String[]{"log1", "log2", "log3", "log4", "other"}) {
+            sharded.createFile(name);
+        }
+
+        ListPage first = sharded.listPage("log", 3, null);
+        assertEquals(java.util.List.of("log1", "log2", "log3"), first.names());
+        assertTrue(first.hasMore());
+
+        ListPage second = sharded.listPage("log", 3, first.nextCursor());
+        assertEquals(java.util.List.of("log4"), second.names());
+        assertFalse(second.hasMore());
+    }
+
+    @Test
+    void testCleanShutdownSkipsRebuildOnRestart() throws Exception {
+        FileSystemManager local = openImage();
+        local.createFile("a.txt");
+        local.writeFile("a.txt", "x".repeat(300).getBytes());
+        local.createFile("b.txt");
+        local.writeFile("b.txt", "kept".getBytes());
+        local.deleteFile("a.txt");
+
+        // never closed: the next open cannot trust the checkpoint
+        FileSystemManager crashed = openImage();
+        assertEquals(1, crashed.getStats().get("startup.rebuilds").intValue());
+        crashed.close();
+
+        FileSystemManager reopened = openImage();
+        assertEquals(1, reopened.getStats().get("startup.cleanLoads").intValue());
+        assertEquals("kept", new String(reopened.readFile("b.txt")));
+        assertEquals(8, reopened.getStats().get("blocks.free").intValue());
+
+        // freed blocks from the checkpoint are reusable
+        reopened.createFile("c.txt");
+        reopened.writeFile("c.txt", "y".repeat(1000).getBytes());
+        assertEquals(1000, reopened.readFile("c.txt").length);
+    }
+
+    @Test
+    void testFsckAndDefragmentation() throws Exception {
+        FileSystemManager local = openImage();
+        local.createFile("a.txt");
+        local.writeFile("a.txt", "a".getBytes());
+        local.createFile("b.txt");
+        local.writeFile("b.txt", "b".getBytes());
+        local.deleteFile("a.txt");
+
+        // reuses a.txt's block, then skips over b.txt's
+        String text = "0123456789".repeat(30);
+        local.createFile("c.txt");
+        local.writeFile("c.txt", text.getBytes());
+        assertEquals(1, local.getStats().get("files.fragmented").intValue());
+        assertTrue(local.check().isClean());
+
+        assertTrue(local.defragmentOnce());
+        assertFalse(local.defragmentOnce());
+        assertEquals(0, local.getStats().get("files.fragmented").intValue());
+        assertEquals(text, new String(local.readFile("c.txt")));
+        assertEquals("b", new String(local.readFile("b.txt")));
+        FsckReport report = local.check();
+        assertTrue(report.isClean(), report.problems().toString());
+        assertEquals(2, report.files());
+        assertEquals(4, report.blocks());
+        local.close();
+
+        // claim more bytes than c.txt's chain holds (slot 0, size field at byte 11)
+        try (RandomAccessFile raw = new RandomAccessFile(imagePath(), "rw")) {
+            raw.seek(11);
+            raw.writeShort(500);
+        }
+        FileSystemManager corrupt = openImage();
+        assertFalse(corrupt.check().isClean());
+        Exception broken = assertThrows(Exception.class, () -> corrupt.readFile("c.txt"));
+        assertTrue(broken.getMessage().contains("broken"));
+    }
+
+    @Test
+    void testEtagsDriveConditionalReadsAndWrites() throws Exception {
+        FileSystemManager local = openImage();
+        local.createFile("a.txt");
+        local.writeFile("a.txt", "one".getBytes());
+
+        FileStat stat = local.stat("a.txt");
+        assertEquals(3, stat.size());
+        assertNull(local.readFileIfChanged("a.txt", stat.etag()));
+
+        String next = local.writeFileIf("a.txt", stat.etag(), "two".getBytes());
+        assertNotEquals(stat.etag(), next);
+        PreconditionFailedException stale = assertThrows(PreconditionFailedException.class,
+                () -> local.writeFileIf("a.txt", stat.etag(), "lost".getBytes()));
+        assertEquals(next, stale.getCurrentEtag());
+
+        VersionedContents changed = local.readFileIfChanged("a.txt", stat.etag());
+        assertEquals("two", new String(changed.data()));
+        assertEquals(next, changed.etag());
+
+        // a recreated file never reuses the old etag, even after a restart
+        local.deleteFile("a.txt");
+        FileSystemManager reopened = openImage();
+        reopened.createFile("a.txt");
+        reopened.writeFile("a.txt", "two".getBytes());
+        assertNotEquals(next, reopened.stat("a.txt").etag());
+    }
+
+    @Test
+    void testVersionsDoNotWrapAt16Bits() throws Exception {
+        FileSystemManager local = openImage();
+        local.createFile("a.txt");
+        local.close();
+
+        // slot 0's full version sits after the 10 block checksums
+        try (RandomAccessFile raw = new RandomAccessFile(imagePath(), "rw")) {
+            raw.seek(10 * 128 + 10 * 4);
+            raw.writeLong(0xFFFF);
+        }
+        FileSystemManager reopened = openImage();
+        assertEquals("0-65535", reopened.stat("a.txt").etag());
+        reopened.writeFile("a.txt", "x".getBytes());
+        assertEquals("0-65536", reopened.stat("a.txt").etag());
+        reopened.close();
+
+        assertEquals("0-65536", openImage().stat("a.txt").etag());
+    }
+
+    @Test
+    void testBlockChecksumsCatchCorruption() throws Exception {
+        FileSystemManager local = openImage();
+        local.createFile("a.txt");
+        local.writeFile("a.txt", "intact".getBytes());
+        assertEquals("intact", new String(local.readFile("a.txt")));
+
+        // flip one byte of the first data block behind the file system's back
+        try (RandomAccessFile raw = new RandomAccessFile(imagePath(), "rw")) {
+            raw.seek(128 + 2);
+            raw.write('X');
+        }
+        Exception corrupt = assertThrows(Exception.class, () -> local.readFile("a.txt"));
+        assertTrue(corrupt.getMessage().contains("checksum"));
+        assertFalse(local.check().isClean());
+
+        // checksums persist, so a restart still refuses the damaged block
+        FileSystemManager reopened = openImage();
+        assertThrows(Exception.class, () -> reopened.readFile("a.txt"));
+    }
+
+    @Test
+    void testWriteBackCoalescesAndFlushes() throws Exception {
+        AtomicInteger diskWrites = new AtomicInteger();
+        FileSystemManager disk = new FileSystemManager(imagePath(), 10 * 128) {
+            @Override
+            public void writeFile(String fileName, byte[] contents) throws Exception {
+                diskWrites.incrementAndGet();
+                super.writeFile(fileName, contents);
+            }
+        };
+        WriteBackFileSystem buffered = new WriteBackFileSystem(disk, 60_000, 64 * 1024);
+        buffered.createFile("a.txt");
+
+        for (int i = 1; i <= 5; i++) buffered.writeFile("a.txt", ("v" + i).getBytes());
+        assertEquals(0, disk.readFile("a.txt").length); // nothing reached the disk yet
+        assertEquals(0, diskWrites.get());
+
+        // a read flushes the file first, with a single write for the whole burst
+        assertEquals("v5", new String(buffered.readFile("a.txt")));
+        assertEquals("v5", new String(disk.readFile("a.txt")));
+        assertEquals(1, diskWrites.get());
+        assertThrows(Exception.class, () -> buffered.writeFile("missing", "x".getBytes()));
+
+        buffered.writeFile("a.txt", "on close".getBytes());
+        buffered.close();
+        FileSystemManager reopened = openImage();
+        assertEquals("on close", new String(reopened.readFile("a.txt")));
+
+        // with a short delay the flusher writes it out on its own
+        WriteBackFileSystem timed = new WriteBackFileSystem(reopened, 20, 64 * 1024);
+        timed.writeFile("a.txt", "timed".getBytes());
+        for (int i = 0; i < 100 && !"timed".equals(new String(reopened.readFile("a.txt"))); i++) {
+            Thread.sleep(20);
+        }
+        assertEquals("timed", new String(reopened.readFile("a.txt")));
+        timed.close();
+    }
+
+    @Test
+    void testWriteBackKeepsFailedFlushesAndReportsThem() throws Exception {
+        AtomicBoolean diskFull = new AtomicBoolean(true);
+        FileSystemManager disk = new FileSystemManager(imagePath(), 10 * 128) {
+            @Override
+            public void writeFile(String fileName, byte[] contents) throws Exception {
+                if (diskFull.get()) throw new Exception("ERROR: file too large (no free blocks)");
+                super.writeFile(fileName, contents);
+            }
+        };
+        WriteBackFileSystem buffered = new WriteBackFileSystem(disk, 60_000, 64 * 1024);
+        buffered.createDirectory("docs");
+        buffered.createFile("docs/a.txt");
+
+        // different spellings of one path coalesce into one buffered write
+        buffered.writeFile("docs/a.txt", "one".getBytes());
+        buffered.writeFile("/docs//a.txt", "two".getBytes());
+        assertEquals(1, buffered.getStats().get("writeback.dirtyFiles").intValue());
+
+        Exception failed = assertThrows(Exception.class, () -> buffered.readFile("docs/a.txt"));
+        assertTrue(failed.getMessage().contains("no free blocks"), failed.getMessage());
+        assertEquals(1, buffered.getStats().get("writeback.dirtyFiles").intValue());
+
+        // the write was kept, so it lands once there is room
+        diskFull.set(false);
+        assertEquals("two", new String(buffered.readFile("/docs/a.txt")));
+        assertEquals(0, buffered.getStats().get("writeback.dirtyFiles").intValue());
+        buffered.close();
+    }
+
+    @Test
+    void testWriteBackNeverKeepsWritesForDeletedFiles() throws Exception {
+        CountDownLatch checking = new CountDownLatch(1);
+        AtomicBoolean pause = new AtomicBoolean(true);
+        FileSystemManager disk = new FileSystemManager(imagePath(), 10 * 128) {
+            @Override
+            public FileStat stat(String path) throws Exception {
+                FileStat stat = super.stat(path);
+                if (pause.getAndSet(false)) {
+                    checking.countDown();
+                    Thread.sleep(200); // a DELETE arrives meanwhile
+                }
+                return stat;
+            }
+        };
+        WriteBackFileSystem buffered = new WriteBackFileSystem(disk, 60_000, 64 * 1024);
+        buffered.createFile("a");
+        Thread deleter = new Thread(() -> {
+            try {
+                checking.await();
+                buffered.deleteFile("a");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        deleter.start();
+        buffered.writeFile("a", "late".getBytes());
+        deleter.join();
+        assertFalse(disk.exists("a"));
+        assertEquals(0, buffered.getStats().get("writeback.dirtyFiles").intValue());
+
+        // deleted underneath the buffer: the pending write is dropped, not retried
+        buffered.createFile("b");
+        buffered.writeFile("b", "x".getBytes());
+        disk.deleteFile("b");
+        Exception missing = assertThrows(Exception.class, () -> buffered.readFile("b"));
+        assertTrue(missing.getMessage().contains("does not exist"), missing.getMessage());
+        assertEquals(0, buffered.getStats().get("writeback.dirtyFiles").intValue());
+        buffered.close();
+    }
+
+    @Test
+    void testStoppingTheDefragmenterMidMoveKeepsTheImageOpen() throws Exception {
+        CountDownLatch moving = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        FileSystemManager local = new FileSystemManager(imagePath(), 10 * 128) {
+            @Override
+            public boolean defragmentOnce() throws IOException {
+                moving.countDown();
+                // hold the move until the stop request has been made
+                while (proceed.getCount() > 0) {
+                    try {
+                        proceed.await();
+                    } catch (InterruptedException ignore) {
+                        Thread.currentThread().interrupt(); // carried into the move's I/O
+                    }
+                }
+                return super.defragmentOnce();
+            }
+        };
+        local.createFile("a.txt");
+        local.writeFile("a.txt", "a".getBytes());
+        local.createFile("b.txt");
+        local.writeFile("b.txt", "b".getBytes());
+        local.deleteFile("a.txt");
+        String text = "0123456789".repeat(30);
+        local.createFile("c.txt");
+        local.writeFile("c.txt", text.getBytes());
+
+        local.setDefragmentation(1);
+        assertTrue(moving.await(5, TimeUnit.SECONDS));
+        Thread stopper = new Thread(() -> local.setDefragmentation(0));
+        stopper.start();
+        Thread.sleep(50);
+        proceed.countDown();
+        stopper.join(5_000);
+        assertFalse(stopper.isAlive());
+
+        // the move finished and the image is still usable
+        assertEquals(0, local.getStats().get("files.fragmented").intValue());
+        local.writeFile("b.txt", "after".getBytes());
+        assertEquals(text, new String(local.readFile("c.txt")));
+        local.close();
+
+        FileSystemManager reopened = openImage();
+        assertEquals(1, reopened.getStats().get("startup.cleanLoads").intValue());
+        assertEquals("after", new String(reopened.readFile("b.txt")));
+    }
+
+    @Test
+    void testFragmentedMultiRunFileRoundTrips() throws Exception {
+        FileSystemManager local = openImage();
+        local.createFile("a.txt");
+        local.writeFile("a.txt", "a".getBytes());
+        local.createFile("b.txt");
+        local.writeFile("b.txt", "b".getBytes());
+        local.deleteFile("a.txt");
+
+        // 5 blocks in two runs: a.txt's old block, then the ones after b.txt
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 120; i++) text.append(i % 10).append("abcd");
+        local.createFile("c.txt");
+        local.writeFile("c.txt", text.toString().getBytes());
+        assertEquals(1, local.getStats().get("files.fragmented").intValue());
+        assertEquals(text.toString(), new String(local.readFile("c.txt")));
+
+        FileSystemManager reopened = openImage();
+        assertEquals(text.toString(), new String(reopened.readFile("c.txt")));
+        assertTrue(reopened.check().isClean());
+    }
+
+    @Test
+    void testHotTierPromotesFrequentFilesAndWritesThrough() throws Exception {
+        AtomicInteger diskReads = new AtomicInteger();
+        FileSystemManager disk = new FileSystemManager(imagePath(), 10 * 128) {
+            @Override
+            public byte[] readFile(String fileName) throws Exception {
+                diskReads.incrementAndGet();
+                return super.readFile(fileName);
+            }
+        };
+        TieredFileSystem tiered = new TieredFileSystem(disk, 200, 160);
+        String a = "a".repeat(100), b = "b".repeat(150);
+        tiered.createFile("a.txt");
+        tiered.writeFile("a.txt", a.getBytes());
+        tiered.createFile("b.txt");
+        tiered.writeFile("b.txt", b.getBytes());
+
+        assertTrue(readHitsDisk(tiered, diskReads, "a.txt"));
+        assertTrue(readHitsDisk(tiered, diskReads, "a.txt")); // second read promotes
+        assertFalse(readHitsDisk(tiered, diskReads, "a.txt"));
+
+        // writes reach the image and replace the hot copy
+        String fresh = "f".repeat(100);
+        tiered.writeFile("a.txt", fresh.getBytes());
+        assertEquals(fresh, new String(disk.readFile("a.txt")));
+        assertFalse(readHitsDisk(tiered, diskReads, "a.txt"));
+
+        // both do not fit: b.txt only displaces a.txt once it is read more often
+        for (int i = 0; i < 5; i++) assertTrue(readHitsDisk(tiered, diskReads, "b.txt"));
+        assertFalse(readHitsDisk(tiered, diskReads, "b.txt"));
+        assertTrue(readHitsDisk(tiered, diskReads, "/a.txt"));
+        assertEquals(fresh, new String(tiered.readFile("/a.txt")));
+
+        // a recreated file never sees the deleted one's hot copy
+        tiered.deleteFile("b.txt");
+        assertThrows(Exception.class, () -> tiered.readFile("b.txt"));
+        tiered.createFile("b.txt");
+        assertEquals(0, tiered.readFile("b.txt").length);
+    }
+
+    @Test
+    void testHotTierReadersNeverSeeTornOrStaleCopies() throws Exception {
+        TieredFileSystem tiered = new TieredFileSystem(openImage(), 1024, 512);
+        String x = "x".repeat(100), y = "y".repeat(100);
+        tiered.createFile("hot.txt");
+        tiered.writeFile("hot.txt", x.getBytes());
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicReference<String> bad = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    while (writing.get()) { // enough reads to cross several aging periods
+                        String seen = new String(tiered.readFile("hot.txt"));
+                        if (!seen.equals(x) && !seen.equals(y)) bad.set(seen);
+                    }
+                } catch (Exception e) {
+                    bad.set(e.getMessage());
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        for (int i = 0; i < 200; i++) tiered.writeFile("hot.txt", (i % 2 == 0 ? y : x).getBytes());
+        Thread.sleep(50);
+        writing.set(false);
+        for (Thread reader : readers) reader.join();
+
+        assertNull(bad.get());
+        assertEquals(x, new String(tiered.readFile("hot.txt")));
+        assertTrue(tiered.getStats().get("tier.agings").intValue() > 0);
+        assertEquals(1, tiered.getStats().get("tier.hotFiles").intValue());
+    }
+
+    // ============================= HELPERS ============================= //
+
+    static int freeBlocks(FileSystem fs) {
+        return fs.getStats().get("blocks.free").intValue();
+    }
+
+    // The data block whose bytes contain name, e.g. the directory leaf recording it.
+    static int blockHolding(byte[] image, String name) {
+        for (int block = 1; block < 10; block++) {
+            String text = new String(image, block * 128, 128, java.nio.charset.StandardCharsets.ISO_8859_1);
+            if (text.contains(name)) return block;
+        }
+        throw new AssertionError(name + " is in no block");
+    }
+
+    static boolean readHitsDisk(FileSystem fs, AtomicInteger diskReads, String name) throws Exception {
+        int before = diskReads.get();
+        fs.readFile(name);
+        return diskReads.get() > before;
+    }
 }
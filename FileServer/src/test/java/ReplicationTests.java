@@ -0,0 +1,124 @@
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.server.FileServer;
+import ca.concordia.server.ReplicaFollower;
+import helpers.ClientRunner;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReplicationTests {
+
+    static final int PRIMARY_PORT = 12410;
+    static final int REPLICA_PORT = 12411;
+    static final int SILENT_PORT = 12412;
+    static File dir;
+    static FileServer primary;
+    static FileServer replica;
+
+    @BeforeAll
+    static void startServers() throws Exception {
+        dir = Files.createTempDirectory("replication").toFile();
+
+        primary = new FileServer(PRIMARY_PORT, new File(dir, "primary.dat").getPath(), 10 * 128);
+        primary.enablePrimary();
+        primary.start();
+
+        // data written before the replica exists arrives through the snapshot
+        ClientRunner.send(PRIMARY_PORT, "CREATE early");
+        ClientRunner.send(PRIMARY_PORT, "WRITE early before");
+
+        replica = new FileServer(REPLICA_PORT, new File(dir, "replica.dat").getPath(), 10 * 128);
+        replica.enableReplica("localhost", PRIMARY_PORT, new File(dir, "replica.state").toPath());
+        replica.start();
+    }
+
+    @AfterAll
+    static void stopServers() {
+        replica.stop(1, TimeUnit.SECONDS);
+        primary.stop(1, TimeUnit.SECONDS);
+    }
+
+    static String awaitReplicaRead(String file, String expected) throws Exception {
+        String res = null;
+        for (int i = 0; i < 50; i++) {
+            res = ClientRunner.send(REPLICA_PORT, "READ " + file);
+            if (expected.equals(res)) break;
+            Thread.sleep(100);
+        }
+        return res;
+    }
+
+    @Test
+    void testReplicaCatchesUpFromSnapshot() throws Exception {
+        assertEquals("before", awaitReplicaRead("early", "before"));
+    }
+
+    @Test
+    void testReplicaFollowsLiveWrites() throws Exception {
+        ClientRunner.send(PRIMARY_PORT, "CREATE live");
+        ClientRunner.send(PRIMARY_PORT, "WRITE live first");
+        assertEquals("first", awaitReplicaRead("live", "first"));
+
+        ClientRunner.send(PRIMARY_PORT, "WRITE live second");
+        assertEquals("second", awaitReplicaRead("live", "second"));
+    }
+
+    @Test
+    void testReplicaResyncsInsteadOfSkippingAFailedOp() throws Exception {
+        // a local directory collides with the file the primary writes next, so
+        // the WRITE fails on every resume until a snapshot replaces the directory
+        replica.getFileSystem().createDirectory("clash");
+        ClientRunner.send(PRIMARY_PORT, "CREATE clash");
+        ClientRunner.send(PRIMARY_PORT, "WRITE clash data");
+        assertEquals("data", awaitReplicaRead("clash", "data"));
+
+        ClientRunner.send(PRIMARY_PORT, "WRITE clash after");
+        assertEquals("after", awaitReplicaRead("clash", "after"));
+    }
+
+    @Test
+    void testReplicaRejectsWrites() throws Exception {
+        String res = ClientRunner.send(REPLICA_PORT, "CREATE nope");
+        assertEquals("ERROR: read-only replica", res);
+    }
+
+    @Test
+    void testReplicaReconnectsWhenThePrimaryGoesSilent() throws Exception {
+        ReplicaFollower follower = new ReplicaFollower(new FileSystemManager(new File(dir, "silent.dat").getPath(), 10 * 128),
+                "localhost", SILENT_PORT, new File(dir, "silent.state").toPath());
+        List<Socket> accepted = new ArrayList<>();
+        try (ServerSocket primary = new ServerSocket(SILENT_PORT)) {
+            primary.setSoTimeout(10_000); // fail rather than hang
+            Thread t = new Thread(follower);
+            t.setDaemon(true);
+            t.start();
+
+            String[] requests = new String[2];
+            for (int i = 0; i < 2; i++) {
+                Socket s = primary.accept();
+                accepted.add(s);
+                requests[i] = new BufferedReader(new InputStreamReader(s.getInputStream())).readLine();
+                // then neither ops nor PINGs, and the connection stays open
+                new PrintWriter(s.getOutputStream(), true).println("RESUME 7 0");
+            }
+            assertTrue(requests[0].startsWith("REPLICATE"), requests[0]);
+            assertEquals("REPLICATE 7 0", requests[1]);
+        } finally {
+            follower.stop();
+            for (Socket s : accepted) s.close();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+import ca.concordia.server.FileServer;
+import ca.concordia.server.Tls;
+import helpers.TestKeystore;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SecurityTests {
+
+    static final int PORT = 12440;
+    static FileServer server;
+    static Path keystore;
+    static SSLContext client;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        keystore = TestKeystore.create();
+        File dir = Files.createTempDirectory("security").toFile();
+        server = new FileServer(PORT, new File(dir, "security.dat").getPath(), 10 * 128);
+        server.enableTls(Tls.serverContext(keystore, TestKeystore.PASSWORD));
+        server.requireAuth(List.of("s3cret"));
+        server.start();
+
+        client = Tls.clientContext(keystore, TestKeystore.PASSWORD);
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.stop(1, TimeUnit.SECONDS);
+    }
+
+    // One TLS connection, one line per command, returns each reply.
+    static String[] session(String... commands) throws Exception {
+        String[] replies = new String[commands.length];
+        try (SSLSocket s = (SSLSocket) client.getSocketFactory().createSocket("localhost", PORT);
+             PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
+            for (int i = 0; i < commands.length; i++) {
+                out.println(commands[i]);
+                replies[i] = in.readLine();
+            }
+        }
+        return replies;
+    }
+
+    // Authenticates over a new connection and returns its TLS session. Reading
+    // the reply also takes in the ticket a later connection resumes with.
+    static SSLSession authenticated(SSLContext context) throws Exception {
+        try (SSLSocket s = (SSLSocket) context.getSocketFactory().createSocket("localhost", PORT);
+             PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
+            out.println("AUTH s3cret");
+            assertEquals("SUCCESS", in.readLine());
+            return s.getSession();
+        }
+    }
+
+    // Server metrics as of a STATS request on a connection of its own, which
+    // itself counts as one TLS handshake or resumption.
+    static Map<String, Double> stats() throws Exception {
+        Map<String, Double> stats = new HashMap<>();
+        for (String pair : session("AUTH s3cret", "STATS")[1].split(",")) {
+            String[] kv = pair.split("=", 2);
+            stats.put(kv[0], Double.parseDouble(kv[1]));
+        }
+        return stats;
+    }
+
+    static long delta(Map<String, Double> before, Map<String, Double> after, String name) {
+        return Math.round(after.getOrDefault(name, 0.0) - before.getOrDefault(name, 0.0));
+    }
+
+    static long connections(Map<String, Double> before, Map<String, Double> after) {
+        return delta(before, after, "tls.handshakes") + delta(before, after, "tls.resumptions");
+    }
+
+    @Test
+    void testAuthenticatedConnectionServesManyCommands() throws Exception {
+        Map<String, Double> before = stats();
+        String[] replies = session("AUTH s3cret", "CREATE secure", "WRITE secure hello", "READ secure");
+        assertArrayEquals(new String[]{"SUCCESS", "SUCCESS", "SUCCESS", "hello"}, replies);
+        Map<String, Double> after = stats();
+
+        assertEquals(2, delta(before, after, "connections.reused")); // WRITE and READ
+        assertEquals(2, connections(before, after));                  // this session and the second STATS
+        assertEquals(0, delta(before, after, "auth.failures"));
+        assertEquals(0, delta(before, after, "tls.failures"));
+    }
+
+    @Test
+    void testCommandsWithoutTokenAreRefused() throws Exception {
+        Map<String, Double> before = stats();
+        assertEquals("ERROR: authentication required", session("LIST")[0]);
+        assertEquals("ERROR: unauthorized", session("AUTH wrong")[0]);
+        Map<String, Double> after = stats();
+
+        assertEquals(1, delta(before, after, "auth.failures"));
+        assertEquals(3, connections(before, after));
+        assertEquals(0, delta(before, after, "connections.reused"));
+    }
+
+    @Test
+    void testSecondConnectionResumesTheSession() throws Exception {
+        SSLContext returning = Tls.clientContext(keystore, TestKeystore.PASSWORD); // empty session cache
+        Map<String, Double> before = stats();
+        SSLSession first = authenticated(returning);
+        SSLSession second = authenticated(returning);
+        Map<String, Double> after = stats();
+
+        assertEquals(first.getCreationTime(), second.getCreationTime());
+        assertEquals(1, delta(before, after, "tls.handshakes"));
+        assertEquals(2, delta(before, after, "tls.resumptions")); // the second connection and STATS
+    }
+
+    @Test
+    void testPlaintextClientOnTlsPortIsDropped() throws Exception {
+        Map<String, Double> before = stats();
+        byte[] reply;
+        try (Socket s = new Socket("localhost", PORT)) {
+            s.setSoTimeout(2000);
+            OutputStream out = s.getOutputStream();
+            out.write("LIST\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            InputStream in = s.getInputStream();
+            reply = in.readAllBytes(); // at most a TLS alert, then the server closes
+        }
+        Map<String, Double> after = stats();
+
+        String text = new String(reply, StandardCharsets.UTF_8);
+        assertFalse(text.contains("NO_FILES") || text.contains("ERROR"), text);
+        assertEquals(1, delta(before, after, "tls.failures"));
+        assertEquals(1, connections(before, after)); // only the second STATS
+        assertEquals(0, delta(before, after, "auth.failures"));
+    }
+}
@@ -1,3 +1,5 @@
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.server.FileServer;
 import helpers.ClientRunner;
 import helpers.ServerRunner;
 import org.junit.jupiter.api.AfterAll;
@@ -5,7 +7,12 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -73,21 +80,121 @@ public class ServerTests {
 
     @Test
     void testServerRestartPersistence() throws Exception {
+        // own port and image, so the restart does not collide with the shared server
+        int port = 12430;
+        File image = File.createTempFile("restart", ".dat");
+        image.deleteOnExit();
+
         // Step 1: Start server
-        ServerRunner server = new ServerRunner();
+        ServerRunner server = new ServerRunner(port, image.getPath());
         server.start();
 
-        ClientRunner.send("CREATE persist");
-        ClientRunner.send("WRITE persist saveddata");
+        ClientRunner.send(port, "CREATE persist");
+        ClientRunner.send(port, "WRITE persist saveddata");
         server.stop();
+        assertThrows(IOException.class, () -> ClientRunner.send(port, "LIST"), "Server still accepting after stop");
 
-        // Step 2: Restart server
-        ServerRunner server2 = new ServerRunner();
+        // Step 2: Restart server on the same port
+        ServerRunner server2 = new ServerRunner(port, image.getPath());
         server2.start();
 
-        String response = ClientRunner.send("READ persist");
+        String response = ClientRunner.send(port, "READ persist");
         assertTrue(response.contains("saveddata"), "File data not persisted across restart");
 
         server2.stop();
     }
+
+    @Test
+    void testListRejectsMalformedRequests() throws Exception {
+        int port = 12432;
+        File image = File.createTempFile("list", ".dat");
+        image.deleteOnExit();
+        ServerRunner own = new ServerRunner(port, image.getPath());
+        own.start();
+        try {
+            ClientRunner.send(port, "MKDIR docs");
+            ClientRunner.send(port, "CREATE docs/a.txt");
+            assertEquals("a.txt", ClientRunner.send(port, "LIST docs/"));
+            assertEquals("NO_FILES", ClientRunner.send(port, "LIST docs/zz"));
+
+            String file = ClientRunner.send(port, "LIST docs/a.txt/");
+            assertEquals("ERROR: docs/a.txt is not a directory", file);
+            String missing = ClientRunner.send(port, "LIST nope/");
+            assertEquals("ERROR: directory nope does not exist", missing);
+
+            for (String limit : new String[]{"abc", "0", "-3"}) {
+                assertEquals("ERROR: usage LIST [prefix] [limit] [cursor]", ClientRunner.send(port, "LIST docs/ " + limit));
+            }
+            assertEquals("a.txt", ClientRunner.send(port, "LIST docs/ 5"));
+        } finally {
+            own.stop();
+        }
+    }
+
+    @Test
+    void testConditionalWriteOverTheWire() throws Exception {
+        int port = 12433;
+        File image = File.createTempFile("etag", ".dat");
+        image.deleteOnExit();
+        ServerRunner own = new ServerRunner(port, image.getPath());
+        own.start();
+        try {
+            ClientRunner.send(port, "CREATE doc");
+            String etag = ClientRunner.send(port, "STAT doc").split(" ")[0];
+
+            String won = ClientRunner.send(port, "WRITE_IF doc " + etag + " first");
+            assertTrue(won.startsWith("SUCCESS "), won);
+            String current = won.substring("SUCCESS ".length());
+
+            assertEquals("PRECONDITION_FAILED " + current, ClientRunner.send(port, "WRITE_IF doc " + etag + " second"));
+            assertEquals("first", ClientRunner.send(port, "READ doc"));
+            assertEquals("ERROR: file nope does not exist", ClientRunner.send(port, "WRITE_IF nope " + etag + " x"));
+        } finally {
+            own.stop();
+        }
+    }
+
+    @Test
+    void testSilentConnectionDoesNotHoldUpStop() throws Exception {
+        int port = 12434;
+        File image = File.createTempFile("silent", ".dat");
+        image.deleteOnExit();
+        FileServer server = new FileServer(port, image.getPath(), 10 * 128);
+        server.start();
+
+        try (Socket silent = new Socket("localhost", port)) {
+            assertEquals("NO_FILES", ClientRunner.send(port, "LIST")); // the silent one has been accepted
+            long started = System.nanoTime();
+            server.stop(10, TimeUnit.SECONDS);
+            long tookMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            assertTrue(tookMs < 5_000, "stop waited " + tookMs + " ms for a connection that never sent anything");
+            assertEquals(-1, silent.getInputStream().read());
+        }
+    }
+
+    @Test
+    void testStopDrainsInFlightRequestsAndClosesImage() throws Exception {
+        int port = 12431;
+        File image = File.createTempFile("drain", ".dat");
+        image.deleteOnExit();
+        FileServer server = new FileServer(port, image.getPath(), 10 * 128);
+        server.start();
+
+        // connected but not yet sent: the request must still be served during the drain
+        try (Socket slow = new Socket("localhost", port);
+             PrintWriter out = new PrintWriter(slow.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(slow.getInputStream()))) {
+            Thread stopper = new Thread(() -> server.stop(5, TimeUnit.SECONDS));
+            stopper.start();
+            Thread.sleep(100);
+            out.println("CREATE late");
+            assertEquals("SUCCESS", in.readLine());
+        }
+        assertTrue(server.awaitTermination(5, TimeUnit.SECONDS), "Server did not terminate");
+
+        // the image was closed cleanly, so reopening skips the rebuild
+        FileSystemManager reopened = new FileSystemManager(image.getPath(), 10 * 128);
+        assertTrue(reopened.exists("late"));
+        assertEquals(1, reopened.getStats().get("startup.cleanLoads").intValue());
+    }
 }
@@ -0,0 +1,108 @@
+package bench;
+
+import ca.concordia.server.AdmissionControl;
+import ca.concordia.server.FileServer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tail latency of a well-behaved client's READs while another address floods
+ * the server with WRITEs, with and without admission limits. The abuser binds
+ * 127.0.0.2 so the per-client buckets can tell the two apart (Linux routes all
+ * of 127/8 to loopback). Not a unit test; run with
+ *   java -cp target/classes:target/test-classes bench.AdmissionBenchmark
+ */
+public class AdmissionBenchmark {
+
+    private static final int PORT = 12460;
+    private static final int ABUSERS = 32;
+    private static final int REQUESTS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // silence per-request logging
+
+        AdmissionControl limited = new AdmissionControl(8);
+        limited.limitClients(500, 50);
+        limited.limitCommand("WRITE", 50, 10);
+
+        console.printf("%-10s %10s %10s %10s %12s%n", "admission", "p50 us", "p99 us", "max us", "abuser ops");
+        run(console, "none", AdmissionControl.unlimited());
+        run(console, "limited", limited);
+        System.exit(0);
+    }
+
+    private static void run(PrintStream console, String label, AdmissionControl admission) throws Exception {
+        File dir = Files.createTempDirectory("admissionbench").toFile();
+        FileServer server = new FileServer(PORT, new File(dir, "bench.dat").getPath(), 10 * 128);
+        server.setAdmissionControl(admission);
+        server.start();
+
+        try (Socket setup = new Socket("localhost", PORT);
+             PrintWriter out = new PrintWriter(setup.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(setup.getInputStream()))) {
+            for (String line : new String[]{"CREATE victim", "WRITE victim hello", "CREATE junk"}) {
+                out.println(line);
+                in.readLine();
+            }
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong abuserOps = new AtomicLong();
+        List<Thread> abusers = new ArrayList<>();
+        for (int i = 0; i < ABUSERS; i++) {
+            Thread t = new Thread(() -> {
+                try (Socket s = new Socket()) {
+                    s.bind(new InetSocketAddress("127.0.0.2", 0));
+                    s.connect(new InetSocketAddress("localhost", PORT));
+                    PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                    String payload = "x".repeat(600);
+                    while (running.get()) {
+                        out.println("WRITE junk " + payload);
+                        if (in.readLine() == null) return;
+                        abuserOps.incrementAndGet();
+                    }
+                } catch (Exception ignore) {
+                }
+            });
+            t.start();
+            abusers.add(t);
+        }
+        Thread.sleep(200); // let the flood build up
+
+        long[] micros = new long[REQUESTS];
+        try (Socket s = new Socket("localhost", PORT);
+             PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
+            for (int i = 0; i < REQUESTS; i++) {
+                long start = System.nanoTime();
+                out.println("READ victim");
+                in.readLine();
+                micros[i] = (System.nanoTime() - start) / 1000;
+            }
+        }
+
+        running.set(false);
+        for (Thread t : abusers) t.join();
+        server.stop(2, TimeUnit.SECONDS);
+
+        Arrays.sort(micros);
+        console.printf("%-10s %10d %10d %10d %12d%n", label,
+                micros[REQUESTS / 2], micros[REQUESTS * 99 / 100], micros[REQUESTS - 1], abuserOps.get());
+    }
+}
@@ -0,0 +1,61 @@
+package bench;
+
+import ca.concordia.filesystem.FileSystemManager;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+
+/**
+ * CPU vs. I/O tradeoff of per-file compression. Not a unit test; run with
+ *   java -cp target/classes:target/test-classes bench.CompressionBenchmark
+ */
+public class CompressionBenchmark {
+
+    private static final int ITERATIONS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        String text = "GET /index.html 200 user=alice latency=12ms\n".repeat(12).substring(0, 500);
+        byte[] payload = text.getBytes();
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // silence per-write logging
+
+        console.println("payload: " + payload.length + " bytes, " + ITERATIONS + " write+read rounds");
+        console.println(run("raw", payload, false));
+        console.println(run("compressed", payload, true));
+        System.setOut(console);
+    }
+
+    private static String run(String label, byte[] payload, boolean compression) throws Exception {
+        File image = File.createTempFile("bench", ".dat");
+        image.deleteOnExit();
+        FileSystemManager fs = new FileSystemManager(image.getPath(), 10 * 128);
+        fs.setCompression(compression);
+        fs.createFile("bench.log");
+
+        // warm up the JIT before measuring
+        for (int i = 0; i < ITERATIONS / 4; i++) {
+            fs.writeFile("bench.log", payload);
+            fs.readFile("bench.log");
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            fs.writeFile("bench.log", payload);
+            fs.readFile("bench.log");
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Map<String, Number> stats = fs.getStats();
+        long compressNanos = fs.getMetrics().get("compression.nanos");
+        long rounds = ITERATIONS + ITERATIONS / 4;
+        return String.format("%-10s %8.1f us/round  blocks=%s  codec=%6.1f us/write  bytes/write=%d",
+                label,
+                elapsed / 1000.0 / ITERATIONS,
+                stats.get("blocks.physical"),
+                compressNanos / 1000.0 / rounds,
+                compression ? fs.getMetrics().get("compression.physicalBytes") / rounds : payload.length);
+    }
+}
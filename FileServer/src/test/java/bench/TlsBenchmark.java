@@ -0,0 +1,107 @@
+package bench;
+
+import ca.concordia.server.FileServer;
+import ca.concordia.server.Tls;
+import helpers.TestKeystore;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of TLS per request: a new connection per READ (full handshake vs.
+ * resumed session) against one persistent connection. Not a unit test; run with
+ *   java -cp target/classes:target/test-classes bench.TlsBenchmark
+ */
+public class TlsBenchmark {
+
+    private static final int PLAIN_PORT = 12450;
+    private static final int TLS_PORT = 12451;
+    private static final int ITERATIONS = 200;
+
+    public static void main(String[] args) throws Exception {
+        Path keystore = TestKeystore.create();
+        File dir = Files.createTempDirectory("tlsbench").toFile();
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // silence per-request logging
+
+        FileServer plain = new FileServer(PLAIN_PORT, new File(dir, "plain.dat").getPath(), 10 * 128);
+        FileServer tls = new FileServer(TLS_PORT, new File(dir, "tls.dat").getPath(), 10 * 128);
+        tls.enableTls(Tls.serverContext(keystore, TestKeystore.PASSWORD));
+        plain.start();
+        tls.start();
+
+        SocketFactory plainSockets = SocketFactory.getDefault();
+        SSLContext resuming = Tls.clientContext(keystore, TestKeystore.PASSWORD);
+        for (int port : new int[]{PLAIN_PORT, TLS_PORT}) {
+            SocketFactory f = port == PLAIN_PORT ? plainSockets : resuming.getSocketFactory();
+            oneShot(f, port, "CREATE bench", 1);
+            oneShot(f, port, "WRITE bench " + "x".repeat(100), 1);
+        }
+
+        console.println(ITERATIONS + " READs of a 100 byte file");
+        console.println(run("plain, connection per request", () -> oneShot(plainSockets, PLAIN_PORT, "READ bench", ITERATIONS)));
+        console.println(run("plain, persistent", () -> persistent(plainSockets, PLAIN_PORT, ITERATIONS)));
+        SSLContext fresh = Tls.clientContext(keystore, TestKeystore.PASSWORD);
+        console.println(run("TLS, full handshake per request", () -> oneShot(fresh.getSocketFactory(), TLS_PORT, "READ bench", ITERATIONS, false)));
+        console.println(run("TLS, resumed session per request", () -> oneShot(resuming.getSocketFactory(), TLS_PORT, "READ bench", ITERATIONS)));
+        console.println(run("TLS, persistent", () -> persistent(resuming.getSocketFactory(), TLS_PORT, ITERATIONS)));
+
+        plain.stop(1, TimeUnit.SECONDS);
+        tls.stop(1, TimeUnit.SECONDS);
+        System.setOut(console);
+    }
+
+    private interface Work {
+        void run() throws Exception;
+    }
+
+    private static String run(String label, Work work) throws Exception {
+        work.run(); // warm up the JIT and the session cache
+        long start = System.nanoTime();
+        work.run();
+        long elapsed = System.nanoTime() - start;
+        return String.format("%-34s %8.1f us/op", label, elapsed / 1000.0 / ITERATIONS);
+    }
+
+    private static void oneShot(SocketFactory sockets, int port, String command, int times) throws Exception {
+        oneShot(sockets, port, command, times, true);
+    }
+
+    private static void oneShot(SocketFactory sockets, int port, String command, int times, boolean resume) throws Exception {
+        for (int i = 0; i < times; i++) {
+            try (Socket s = sockets.createSocket("localhost", port);
+                 PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+                 BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
+                s.setTcpNoDelay(true);
+                out.println(command);
+                in.readLine();
+                // without its session the next connection needs a full handshake
+                if (!resume && s instanceof SSLSocket tls) tls.getSession().invalidate();
+            }
+        }
+    }
+
+    private static void persistent(SocketFactory sockets, int port, int times) throws Exception {
+        try (Socket s = sockets.createSocket("localhost", port);
+             PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
+            s.setTcpNoDelay(true);
+            for (int i = 0; i < times; i++) {
+                out.println("READ bench");
+                in.readLine();
+            }
+        }
+    }
+}
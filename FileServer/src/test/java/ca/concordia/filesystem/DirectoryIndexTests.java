@@ -0,0 +1,76 @@
+package ca.concordia.filesystem;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// MAXFILES keeps real directories to one leaf, so splits are exercised here directly.
+public class DirectoryIndexTests {
+
+    static final int DIR = 0;
+
+    static DirectoryIndex withChildren(int n) {
+        DirectoryIndex index = DirectoryIndex.empty().withDirectory(DIR, new DirectoryIndex.Leaf[0]);
+        for (int i = 0; i < n; i++) index = index.withChild(DIR, String.format("f%03d", i), i);
+        return index;
+    }
+
+    static List<String> names(Iterator<Map.Entry<String, Integer>> it) {
+        List<String> out = new ArrayList<>();
+        it.forEachRemaining(e -> out.add(e.getKey()));
+        return out;
+    }
+
+    @Test
+    void testInsertTouchesOnlyOneLeaf() {
+        DirectoryIndex index = withChildren(40);
+        DirectoryIndex.Leaf[] before = index.leaves(DIR);
+        assertTrue(before.length > 1);
+        for (DirectoryIndex.Leaf leaf : before) assertTrue(leaf.size() <= DirectoryIndex.RECORDS_PER_LEAF);
+
+        DirectoryIndex.Leaf[] after = index.withChild(DIR, "f010x", 99).leaves(DIR);
+        int changed = 0;
+        for (int i = 0; i < Math.min(before.length, after.length); i++) {
+            if (before[i] != after[i]) changed++;
+        }
+        assertEquals(1, changed);
+        assertEquals(99, index.withChild(DIR, "f010x", 99).lookup(DIR, "f010x"));
+    }
+
+    @Test
+    void testRemovingALeafsLastRecordDropsTheLeaf() {
+        DirectoryIndex index = withChildren(DirectoryIndex.RECORDS_PER_LEAF + 1);
+        assertEquals(2, index.leaves(DIR).length);
+
+        DirectoryIndex.Leaf last = index.leaves(DIR)[1];
+        for (String name : last.names) index = index.withoutChild(DIR, name);
+        assertEquals(1, index.leaves(DIR).length);
+        assertEquals(-1, index.lookup(DIR, last.first()));
+    }
+
+    @Test
+    void testChildrenIterateAcrossLeavesFromAnyStart() {
+        DirectoryIndex index = withChildren(30);
+        assertEquals(30, names(index.children(DIR, null, true)).size());
+        assertEquals(List.of("f028", "f029"), names(index.children(DIR, "f027", false)));
+        assertEquals(List.of("f027", "f028", "f029"), names(index.children(DIR, "f027", true)));
+        assertEquals(List.of("f029"), names(index.children(DIR, "f028x", true)));
+    }
+
+    @Test
+    void testLeafRoundTripsThroughOneBlock() {
+        DirectoryIndex.Leaf leaf = withChildren(DirectoryIndex.RECORDS_PER_LEAF).leaves(DIR)[0];
+        byte[] block = leaf.encode();
+        assertEquals(FileSystemManager.BLOCK_SIZE, block.length);
+
+        DirectoryIndex.Leaf decoded = DirectoryIndex.Leaf.decode(block, 3);
+        assertArrayEquals(leaf.names, decoded.names);
+        assertArrayEquals(leaf.slots, decoded.slots);
+        assertEquals(3, decoded.node);
+    }
+}
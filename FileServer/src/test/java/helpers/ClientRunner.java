@@ -5,7 +5,11 @@ import java.net.*;
 
 public class ClientRunner {
     public static String send(String command) throws IOException {
-        try (Socket s = new Socket("localhost", 12345);
+        return send(12345, command);
+    }
+
+    public static String send(int port, String command) throws IOException {
+        try (Socket s = new Socket("localhost", port);
              PrintWriter out = new PrintWriter(s.getOutputStream(), true);
              BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
             out.println(command);
@@ -1,40 +1,36 @@
 package helpers;
 
+import ca.concordia.server.FileServer;
+
 import java.io.*;
-import java.net.*;
-import java.time.Duration;
-import java.time.Instant;
+import java.util.concurrent.TimeUnit;
 
+// Runs the server in-process: start() returns once the port is listening and
+// stop() returns once requests have drained and the image is closed.
 public class ServerRunner {
-    private Process process;
-
-    public void start() throws IOException, InterruptedException {
-        process = new ProcessBuilder("java", "-cp", "target/classes", "ca.concordia.Main")
-                .redirectErrorStream(true)
-                .start();
-        // Wait for port to become available (server ready)
-        Instant start = Instant.now();
-        while (!isPortOpen("localhost", 12345)) {
-            if (Duration.between(start, Instant.now()).getSeconds() > 10)
-                throw new RuntimeException("Server failed to start within timeout");
-            Thread.sleep(200);
-        }
+    public static final int PORT = 12345;
+
+    private final int port;
+    private final String image;
+    private FileServer server;
+
+    public ServerRunner() {
+        this(PORT, "filesystem.dat");
     }
 
-    private boolean isPortOpen(String host, int port) {
-        try (Socket socket = new Socket()) {
-            socket.connect(new InetSocketAddress(host, port), 200);
-            return true;
-        } catch (IOException ex) {
-            return false;
-        }
+    public ServerRunner(int port, String image) {
+        this.port = port;
+        this.image = image;
     }
 
+    public void start() throws IOException {
+        server = new FileServer(port, image, 10 * 128);
+        server.start();
+    }
 
     public void stop() {
-        if (process != null && process.isAlive()) {
-            process.destroy();
+        if (server != null) {
+            server.stop(5, TimeUnit.SECONDS);
         }
     }
 }
-
@@ -0,0 +1,29 @@
+package helpers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Self-signed PKCS12 keystore for localhost, made with the JDK's keytool. A
+// PKCS12 file holding the certificate also works as the client's truststore.
+public class TestKeystore {
+    public static final char[] PASSWORD = "changeit".toCharArray();
+
+    public static Path create() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("tls");
+        Path keystore = dir.resolve("server.p12");
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process p = new ProcessBuilder(keytool, "-genkeypair",
+                "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-validity", "1", "-storetype", "PKCS12",
+                "-keystore", keystore.toString(),
+                "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve("keytool.log").toFile())
+                .start();
+        if (p.waitFor() != 0) throw new IOException("keytool failed, see " + dir.resolve("keytool.log"));
+        return keystore;
+    }
+}